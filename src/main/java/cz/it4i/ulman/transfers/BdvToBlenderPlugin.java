@@ -30,6 +30,7 @@ package cz.it4i.ulman.transfers;
 import org.mastodon.mamut.BdvToBlenderView;
 import org.mastodon.mamut.plugin.MamutPluginAppModel;
 import org.scijava.command.Command;
+import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
@@ -38,6 +39,9 @@ public class BdvToBlenderPlugin implements Command {
 	@Parameter(persist = false)
 	private MamutPluginAppModel pluginAppModel;
 
+	@Parameter
+	private LogService logService;
+
 	@Parameter
 	private String connectURL = "localhost:9083";
 
@@ -47,10 +51,38 @@ public class BdvToBlenderPlugin implements Command {
 	@Parameter(label = "Spheres scale factor:", min = "0.01")
 	float objScale = 1.0f;
 
+	@Parameter(label = "Send spheres in the compact (packed) form:",
+		description = "Requires Blender add-on that understands the packed spheres.")
+	boolean usePackedSpheres = false;
+
+	@Parameter(label = "Send only changed spheres (delta updates):",
+		description = "Requires Blender add-on that understands the per-instance updates.")
+	boolean useDeltaUpdates = false;
+
+	@Parameter(label = "Send spheres only once per timepoint, then only the view transform:",
+		description = "Requires Blender add-on that understands the collection transforms.")
+	boolean useViewTransform = false;
+
+	@Parameter(label = "Send only spheres visible in the BDV (culling):",
+		description = "Spheres outside the displayed area are not sent at all.")
+	boolean useCulling = false;
+
+	@Parameter(label = "Culling margin around the displayed area (in pixels):", min = "0")
+	double cullingMargin = 20;
+
+	@Parameter(label = "Culling depth around the focal plane (in pixels):", min = "0")
+	double cullingDepth = 100;
+
 	@Override
 	public void run() {
 		new BdvToBlenderView(pluginAppModel)
+				.setLogService(logService)
 				.setSpheresScalingFactor(objScale)
+				.setUsePackedSpheres(usePackedSpheres)
+				.setUseDeltaUpdates(useDeltaUpdates)
+				.setUseViewTransform(useViewTransform)
+				.setUseCulling(useCulling)
+				.setCullingMargins(cullingMargin, cullingDepth)
 				.openUseAutoCleanBdvToBlenderView(
 						connectURL,
 						clientName,
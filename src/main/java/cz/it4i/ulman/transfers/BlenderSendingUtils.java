@@ -27,15 +27,21 @@
  */
 package cz.it4i.ulman.transfers;
 
+import cz.it4i.ulman.transfers.graphics.ChunkingBatchesSender;
+import cz.it4i.ulman.transfers.graphics.FlowControlledSender;
 import cz.it4i.ulman.transfers.graphics.protocol.BucketsWithGraphics;
 import cz.it4i.ulman.transfers.graphics.protocol.ClientToServerGrpc;
-import io.grpc.ConnectivityState;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.stub.StreamObserver;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 public class BlenderSendingUtils {
@@ -85,7 +91,8 @@ public class BlenderSendingUtils {
 			);
 		}
 
-		public void closeConnection() {
+		public synchronized void closeConnection() {
+			if (isConnectionClosed) return;
 			SINGLETON.deregisterChannelUsage(url);
 			isConnectionClosed = true;
 		}
@@ -93,39 +100,130 @@ public class BlenderSendingUtils {
 		public final ClientToServerGrpc.ClientToServerStub commContinuous;
 		public final ClientToServerGrpc.ClientToServerBlockingStub commBlocking;
 		public final BucketsWithGraphics.ClientIdentification clientIdObj;
+
+		private int maxMessageSize = 0;
+
+		/** batches larger than this (in bytes) are sent split into several messages,
+		 *  when sent via this handle's addGraphics() or replaceGraphics(); the splitting
+		 *  requires the Blender side to understand the 'continuesPreviousBatch' flag,
+		 *  and is therefore disabled by default (with 0 or any non-positive value),
+		 *  the DEFAULT_MAX_MESSAGE_SIZE is a safe value to enable it with */
+		public BlenderConnectionHandle setMaxMessageSize(final int bytes) {
+			maxMessageSize = bytes;
+			return this;
+		}
+
+		public int getMaxMessageSize() {
+			return maxMessageSize;
+		}
+
+		/** the same as commContinuous.addGraphics() but with splitting of too large batches (if enabled),
+		 *  and with onNext() that waits while the Blender is not keeping up (see FlowControlledSender) */
+		public StreamObserver<BucketsWithGraphics.BatchOfGraphics> addGraphics(
+				final StreamObserver<BucketsWithGraphics.Empty> responseObserver) {
+			final StreamObserver<BucketsWithGraphics.BatchOfGraphics> sender
+					= FlowControlledSender.start(commContinuous::addGraphics, responseObserver);
+			return maxMessageSize > 0 ? new ChunkingBatchesSender(sender, maxMessageSize) : sender;
+		}
+
+		/** the same as commContinuous.replaceGraphics() but with splitting of too large batches (if enabled),
+		 *  and with onNext() that waits while the Blender is not keeping up (see FlowControlledSender) */
+		public StreamObserver<BucketsWithGraphics.BatchOfGraphics> replaceGraphics(
+				final StreamObserver<BucketsWithGraphics.Empty> responseObserver) {
+			final StreamObserver<BucketsWithGraphics.BatchOfGraphics> sender
+					= FlowControlledSender.start(commContinuous::replaceGraphics, responseObserver);
+			return maxMessageSize > 0 ? new ChunkingBatchesSender(sender, maxMessageSize) : sender;
+		}
+
+		/** the same as commContinuous.updateGraphics() but with onNext() that
+		 *  waits while the Blender is not keeping up (see FlowControlledSender) */
+		public StreamObserver<BucketsWithGraphics.BatchOfGraphicsUpdate> updateGraphics(
+				final StreamObserver<BucketsWithGraphics.Empty> responseObserver) {
+			return FlowControlledSender.start(commContinuous::updateGraphics, responseObserver);
+		}
 	}
 
+	/** safely below the default 4 MB limit of the gRPC receiving side */
+	public static final int DEFAULT_MAX_MESSAGE_SIZE = 3 * 1024 * 1024;
+
 
 	//the main connection-establishing/reusing method
 	static public BlenderConnectionHandle connectToBlender(final String url, final String clientName) {
 		return new BlenderConnectionHandle(url,clientName, SINGLETON.registerChannelUsage(url));
 	}
 
+	/** closes the channel in the background: it is asked to shut down
+	 *  gracefully and, if it hasn't terminated within the 'maxWaitTime',
+	 *  it is shut down forcefully; the returned future completes when
+	 *  the channel is terminated (or given up on) */
+	public static CompletableFuture<Void> closeChannelAsync(final ManagedChannel channel,
+	                                                        final long maxWaitTimeInSeconds) {
+		final CompletableFuture<Void> closed = new CompletableFuture<>();
+		final long deadline = System.currentTimeMillis() + 1000L*maxWaitTimeInSeconds;
+		//request it to stop whenever it can (this finishes any commencing transfers),
+		//then keep asking (from the background thread) when it's done
+		channel.shutdown();
+		final Runnable checker = new Runnable() {
+			@Override
+			public void run() {
+				if (channel.isTerminated()) {
+					closed.complete(null);
+				} else if (System.currentTimeMillis() > deadline) {
+					//hard stop if it is still not yet closed gracefully
+					channel.shutdownNow();
+					closed.complete(null);
+				} else {
+					SINGLETON.janitor.schedule(this, CHECKING_PERIOD_IN_MILLIS, TimeUnit.MILLISECONDS);
+				}
+			}
+		};
+		SINGLETON.janitor.execute(checker);
+		return closed;
+	}
+
+	public static CompletableFuture<Void> closeChannelAsync(final ManagedChannel channel) {
+		return closeChannelAsync(channel, 30);
+	}
+
+	/** the same as closeChannel(channel, 15, 2) */
 	static void closeChannel(final ManagedChannel channel)
 	throws InterruptedException {
 		closeChannel(channel, 15, 2);
 	}
 
+	/** blocks the calling thread until the channel is closed as in the closeChannelAsync(),
+	 *  that is, for at most 2*halfOfMaxWaitTimeInSeconds + checkingPeriodInSeconds seconds
+	 *  (the same total as before); unlike before, it doesn't first wait for the channel to be
+	 *  READY, the channel is asked to shut down right away and is checked every 200 ms, and
+	 *  if it's still not terminated at the end of that period, it is shut down forcefully */
 	static void closeChannel(final ManagedChannel channel,
 	                         final int halfOfMaxWaitTimeInSeconds,
 	                         final int checkingPeriodInSeconds)
 	throws InterruptedException {
-		//first, make sure the channel describe itself as "READY"
-		int timeSpentWaiting = 0;
-		while (channel.getState(false) != ConnectivityState.READY && timeSpentWaiting < halfOfMaxWaitTimeInSeconds) {
-			timeSpentWaiting += checkingPeriodInSeconds;
-			Thread.sleep(checkingPeriodInSeconds * 1000L); //seconds -> milis
-		}
-		//but even when it claims "READY", it still needs some grace time to finish any commencing transfers;
-		//request it to stop whenever it can, then keep asking when it's done
-		channel.shutdown();
-		timeSpentWaiting = 0;
-		while (!channel.isTerminated() && timeSpentWaiting < halfOfMaxWaitTimeInSeconds) {
-			timeSpentWaiting += checkingPeriodInSeconds;
-			Thread.sleep(checkingPeriodInSeconds * 1000L); //seconds -> milis
+		try {
+			closeChannelAsync(channel, 2L*halfOfMaxWaitTimeInSeconds + checkingPeriodInSeconds).get();
+		} catch (ExecutionException e) {
+			/* cannot happen, the future is never completed exceptionally */
 		}
-		//last few secs extra before a hard stop (if it is still not yet closed gracefully)
-		channel.awaitTermination(checkingPeriodInSeconds, TimeUnit.SECONDS);
+	}
+
+	static final long CHECKING_PERIOD_IN_MILLIS = 200;
+
+
+	// ---------------------- configuration ----------------------
+	private static volatile long keepAliveTimeInSeconds = 0;
+	private static volatile long idleTimeoutInSeconds = 300;
+
+	/** new channels will be pinging the server after this period of inactivity
+	 *  to keep the connection open (e.g., through firewalls), 0 means never */
+	public static void setKeepAliveTime(final long seconds) {
+		keepAliveTimeInSeconds = seconds;
+	}
+
+	/** channels that are not used by any handle for this long are closed
+	 *  (and would be re-opened on the next use), 0 means never */
+	public static void setIdleTimeout(final long seconds) {
+		idleTimeoutInSeconds = seconds;
 	}
 
 
@@ -133,56 +231,98 @@ public class BlenderSendingUtils {
 	//the single (and invisible) memory of this whole circus
 	private static final BlenderSendingUtils SINGLETON = new BlenderSendingUtils();
 
+	static class PooledChannel {
+		final ManagedChannel channel;
+		int noOfUsers = 0;
+		long lastReleasedTime = System.currentTimeMillis();
+
+		PooledChannel(final String url) {
+			final ManagedChannelBuilder<?> builder = ManagedChannelBuilder.forTarget(url).usePlaintext();
+			if (keepAliveTimeInSeconds > 0) {
+				builder.keepAliveTime(keepAliveTimeInSeconds, TimeUnit.SECONDS)
+						.keepAliveWithoutCalls(true);
+			}
+			channel = builder.build();
+		}
+	}
+
 	//internal data of the singleton
-	private final Map<String, ManagedChannel> openedChannels = new HashMap<>(5);
-	private final Map<String, Integer> noOfOpenedChannelsUsers = new HashMap<>(5);
+	private final ConcurrentHashMap<String, PooledChannel> openedChannels = new ConcurrentHashMap<>(5);
+
+	/** background thread for the closing of the channels and for the eviction of the idle ones */
+	private final ScheduledExecutorService janitor = Executors.newSingleThreadScheduledExecutor(r -> {
+		final Thread t = new Thread(r, "Blender channels janitor");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private BlenderSendingUtils() {
+		janitor.scheduleWithFixedDelay(this::closeIdleChannels, 30, 30, TimeUnit.SECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread(() ->
+			openedChannels.values().forEach(pc -> pc.channel.shutdownNow()),
+			"Blender channels closer") );
+	}
 
 	/** increases usage counter; and if the first use of it is detected,
 	 * the channel gets created and connected */
 	private ManagedChannel registerChannelUsage(final String url) {
-		if (!openedChannels.containsKey(url)) {
-			openedChannels.put(url, ManagedChannelBuilder.forTarget(url).usePlaintext().build());
-		}
-		noOfOpenedChannelsUsers.put(url, noOfOpenedChannelsUsers.getOrDefault(url, 0)+1);
-		return openedChannels.get(url);
+		return openedChannels.compute(url, (u, pc) -> {
+			if (pc == null || pc.channel.isShutdown()) pc = new PooledChannel(u);
+			pc.noOfUsers++;
+			return pc;
+		}).channel;
 	}
 
 	/** decreases usage counter; and if it drops to zero afterwards,
-	 * the underlying channel is still kept alive */
+	 * the underlying channel is still kept alive (until it becomes idle for too long) */
 	private void deregisterChannelUsage(final String url) {
-		if (noOfOpenedChannelsUsers.getOrDefault(url,0) == 0) return;
-		noOfOpenedChannelsUsers.put(url, noOfOpenedChannelsUsers.get(url)-1);
+		openedChannels.computeIfPresent(url, (u, pc) -> {
+			if (pc.noOfUsers > 0 && --pc.noOfUsers == 0) pc.lastReleasedTime = System.currentTimeMillis();
+			return pc;
+		});
+	}
+
+	private void closeIdleChannels() {
+		final long timeout = idleTimeoutInSeconds;
+		if (timeout <= 0) return;
+		closeChannelsIdleSince(System.currentTimeMillis() - 1000L*timeout);
+	}
+
+	private CompletableFuture<Void> closeChannelsIdleSince(final long idleSince) {
+		final List<CompletableFuture<Void>> closings = new ArrayList<>(openedChannels.size());
+		for (String url : openedChannels.keySet()) {
+			final ManagedChannel[] toBeClosed = new ManagedChannel[1];
+			openedChannels.computeIfPresent(url, (u, pc) -> {
+				if (pc.noOfUsers > 0 || pc.lastReleasedTime > idleSince) return pc;
+				toBeClosed[0] = pc.channel;
+				return null; //removes it from the map
+			});
+			if (toBeClosed[0] != null) closings.add( closeChannelAsync(toBeClosed[0]) );
+		}
+		return CompletableFuture.allOf( closings.toArray(new CompletableFuture[0]) );
 	}
 
 	public static String reportConnections() {
 		final StringBuilder sb = new StringBuilder("Known connections:");
-		for (String url : SINGLETON.openedChannels.keySet())
-			sb.append("\n  url "+url+" is currently used "+SINGLETON.noOfOpenedChannelsUsers.get(url)+" times");
+		SINGLETON.openedChannels.forEach( (url,pc) ->
+			sb.append("\n  url "+url+" is currently used "+pc.noOfUsers+" times") );
 		return sb.toString();
 	}
 
-	/** find not-used channels (counter equals to zero), close them and remove them the management */
+	/** find not-used channels (counter equals to zero), remove them from the management and close them;
+	 *  returns only after all of them are closed */
 	public static void closeNotNeededConnections()
 	throws InterruptedException {
-		final Iterator<String> urls = SINGLETON.openedChannels.keySet().iterator();
-		while (urls.hasNext()) {
-			String url = urls.next();
-			if (SINGLETON.noOfOpenedChannelsUsers.get(url) == 0) {
-				closeChannel(SINGLETON.openedChannels.get(url));
-				SINGLETON.noOfOpenedChannelsUsers.remove(url);
-				urls.remove(); //essentially the same as SINGLETON.openedChannels.remove(url);
-			}
+		try {
+			closeNotNeededConnectionsAsync().get();
+		} catch (ExecutionException e) {
+			/* cannot happen, the futures are never completed exceptionally */
 		}
 	}
 
-	@Override
-	protected void finalize() {
-		//"nullify" all channels so that they could get closed
-		noOfOpenedChannelsUsers.replaceAll((url, cnt) -> 0);
-		try {
-			closeNotNeededConnections();
-		}
-		catch (InterruptedException e)
-		{ /* no time to care here... */ }
+	/** find not-used channels (counter equals to zero), remove them from the management and close them;
+	 *  the returned future completes when all of them are closed */
+	public static CompletableFuture<Void> closeNotNeededConnectionsAsync() {
+		return SINGLETON.closeChannelsIdleSince(Long.MAX_VALUE);
 	}
 }
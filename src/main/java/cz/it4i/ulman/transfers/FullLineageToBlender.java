@@ -27,11 +27,13 @@
  */
 package cz.it4i.ulman.transfers;
 
-import cz.it4i.ulman.transfers.graphics.EmptyIgnoringStreamObservers;
+import cz.it4i.ulman.transfers.graphics.CompletableStreamObserver;
 import cz.it4i.ulman.transfers.graphics.protocol.BucketsWithGraphics;
 import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
+import gnu.trove.list.array.TIntArrayList;
 import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
 import org.mastodon.mamut.plugin.MamutPluginAppModel;
 import org.mastodon.mamut.tomancak.util.SpotsIterator;
@@ -46,10 +48,13 @@ import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 
 @Plugin( type = Command.class, name = "Display lineage in SimViewer" )
@@ -86,6 +91,18 @@ public class FullLineageToBlender extends DynamicCommand {
 	@Parameter(label = "Spheres scale:")
 	private float scaleFactor = 0.4f;
 
+	@Parameter(label = "Send spheres in the compact (packed) form:",
+		description = "Requires Blender add-on that understands the packed spheres.")
+	private boolean usePackedSpheres = false;
+
+	@Parameter(label = "Split too large batches into several messages:",
+		description = "Requires Blender add-on that understands the continued batches.")
+	private boolean splitLargeBatches = false;
+
+	@Parameter(label = "Number of threads to prepare the data:", min = "1",
+		description = "Lineages of different roots are prepared in parallel, but sent in the original order.")
+	private int noOfThreads = 1;
+
 	@Parameter
 	private LogService logService;
 
@@ -96,15 +113,12 @@ public class FullLineageToBlender extends DynamicCommand {
 			final BlenderSendingUtils.BlenderConnectionHandle conn
 					= BlenderSendingUtils.connectToBlender(connectURL, clientName);
 			conn.sendInitialIntroHandshake();
+			if (splitLargeBatches) conn.setMaxMessageSize(BlenderSendingUtils.DEFAULT_MAX_MESSAGE_SIZE);
 
 			//now keep pushing data away to the channel
+			final CompletableStreamObserver responses = new CompletableStreamObserver();
 			final StreamObserver<BucketsWithGraphics.BatchOfGraphics> dataSender
-					= conn.commContinuous.replaceGraphics(new EmptyIgnoringStreamObservers());
-
-			final BucketsWithGraphics.Vector3D.Builder vBuilder
-					= BucketsWithGraphics.Vector3D.newBuilder();
-			final BucketsWithGraphics.SphereParameters.Builder sBuilder
-					= BucketsWithGraphics.SphereParameters.newBuilder();
+					= conn.replaceGraphics(responses);
 
 			//<colors>
 			Optional<TagSetStructure.TagSet> ts = pluginAppModel.getAppModel().getModel()
@@ -114,39 +128,19 @@ public class FullLineageToBlender extends DynamicCommand {
 					.stream()
 					.filter(_ts -> _ts.getName().equals(colorScheme))
 					.findFirst();
-			final GraphColorGenerator<Spot, Link> colorizer
-					= ts.isPresent() ? new TagSetGraphColorGenerator<>(
-						pluginAppModel.getAppModel().getModel().getTagSetModel(), ts.get())
-					: new FixedColorGenerator(255,255,255);
 			//</colors>
 
-			final SpotsIterator visitor = new SpotsIterator(pluginAppModel.getAppModel(),
-					logService.subLogger("export of " + dataName));
-
-			visitor.visitRootsFromEntireGraph( root -> {
-				final BucketsWithGraphics.BatchOfGraphics.Builder nodeBuilder = BucketsWithGraphics.BatchOfGraphics.newBuilder()
-						.setClientID(conn.clientIdObj)
-						.setCollectionName(dataName)
-						.setDataName(root.getLabel())
-						.setDataID(root.getInternalPoolIndex());
-
-				visitor.visitDownstreamSpots(root, spot -> {
-					sBuilder.setCentre( vBuilder
-							//updates the builder content and builds inside setCentre()
-							.setX(spot.getFloatPosition(0))
-							.setY(spot.getFloatPosition(1))
-							.setZ(spot.getFloatPosition(2)) );
-					sBuilder.setTime(spot.getTimepoint());
-					sBuilder.setRadius(scaleFactor * (float)Math.sqrt(spot.getBoundingSphereRadiusSquared()));
-					sBuilder.setColorXRGB( colorizer.color(spot) );
-					//logService.info("adding sphere at: "+sBuilder.getTime());
-					nodeBuilder.addSpheres(sBuilder);
-				});
-				dataSender.onNext( nodeBuilder.build() );
-			});
+			try {
+				if (noOfThreads > 1) sendRootsInParallel(conn, dataSender, ts.orElse(null));
+				else sendRoots(conn, dataSender, ts.orElse(null));
+			} catch (Throwable t) {
+				//don't leave Blender waiting for the rest of the data
+				dataSender.onError(t);
+				conn.closeConnection();
+				throw t;
+			}
 			dataSender.onCompleted();
-
-			conn.closeConnection();
+			closeWhenAcknowledged(conn, responses);
 		}
 		catch (StatusRuntimeException e) {
 			logService.error("Mastodon network sender: GRPC: " + e.getMessage());
@@ -155,4 +149,141 @@ public class FullLineageToBlender extends DynamicCommand {
 			e.printStackTrace();
 		}
 	}
+
+	/** Builds the batches of individual roots: own spots iterator (with its own
+	 *  spot references), own message builders and own colorizer (as the tag maps
+	 *  are not safe to share), so one worker should not be used by multiple threads. */
+	class Worker {
+		final ModelGraph graph = pluginAppModel.getAppModel().getModel().getGraph();
+		final RootsIndex rootsIndex = RootsIndex.of(graph);
+		final SpotsIterator visitor = new SpotsIterator(pluginAppModel.getAppModel(),
+				logService.subLogger("export of " + dataName));
+
+		final BucketsWithGraphics.Vector3D.Builder vBuilder
+				= BucketsWithGraphics.Vector3D.newBuilder();
+		final BucketsWithGraphics.SphereParameters.Builder sBuilder
+				= BucketsWithGraphics.SphereParameters.newBuilder();
+		final PackedSpheresBuilder packedBuilder = new PackedSpheresBuilder();
+
+		final GraphColorGenerator<Spot, Link> colorizer;
+
+		Worker(final TagSetStructure.TagSet ts) {
+			colorizer = ts != null ? new TagSetGraphColorGenerator<>(
+					pluginAppModel.getAppModel().getModel().getTagSetModel(), ts)
+					: new FixedColorGenerator(255,255,255);
+		}
+
+		/** builds the batch while the graph is read-locked, returns null if the
+		 *  spot is no longer a root (the graph has changed since the roots were listed) */
+		BucketsWithGraphics.BatchOfGraphics buildBatchOfRoot(final int rootPoolIndex,
+		                                                     final BucketsWithGraphics.ClientIdentification clientID) {
+			final Spot root = graph.vertexRef();
+			graph.getLock().readLock().lock();
+			try {
+				graph.vertices().getRefPool().getObject(rootPoolIndex, root);
+				return rootsIndex.isRoot(root, graph) ? buildBatchOfRoot(root, clientID) : null;
+			} finally {
+				graph.getLock().readLock().unlock();
+				graph.releaseRef(root);
+			}
+		}
+
+		BucketsWithGraphics.BatchOfGraphics buildBatchOfRoot(final Spot root,
+		                                                     final BucketsWithGraphics.ClientIdentification clientID) {
+			final BucketsWithGraphics.BatchOfGraphics.Builder nodeBuilder = BucketsWithGraphics.BatchOfGraphics.newBuilder()
+					.setClientID(clientID)
+					.setCollectionName(dataName)
+					.setDataName(root.getLabel())
+					.setDataID(root.getInternalPoolIndex());
+
+			if (usePackedSpheres) {
+				packedBuilder.clear();
+				visitor.visitDownstreamSpots(root, spot ->
+					packedBuilder.addSphere(spot,
+							scaleFactor * (float)Math.sqrt(spot.getBoundingSphereRadiusSquared()),
+							spot.getTimepoint(), colorizer.color(spot)) );
+				return packedBuilder.buildInto(nodeBuilder).build();
+			}
+
+			visitor.visitDownstreamSpots(root, spot -> {
+				sBuilder.setCentre( vBuilder
+						//updates the builder content and builds inside setCentre()
+						.setX(spot.getFloatPosition(0))
+						.setY(spot.getFloatPosition(1))
+						.setZ(spot.getFloatPosition(2)) );
+				sBuilder.setTime(spot.getTimepoint());
+				sBuilder.setRadius(scaleFactor * (float)Math.sqrt(spot.getBoundingSphereRadiusSquared()));
+				sBuilder.setColorXRGB( colorizer.color(spot) );
+				//logService.info("adding sphere at: "+sBuilder.getTime());
+				nodeBuilder.addSpheres(sBuilder);
+			});
+			return nodeBuilder.build();
+		}
+	}
+
+	/** Builds the batches of individual roots one after another, and sends each
+	 *  as soon as it is built; the graph is locked only while a batch is built. */
+	private void sendRoots(final BlenderSendingUtils.BlenderConnectionHandle conn,
+	                       final StreamObserver<BucketsWithGraphics.BatchOfGraphics> dataSender,
+	                       final TagSetStructure.TagSet ts)
+	{
+		final ModelGraph graph = pluginAppModel.getAppModel().getModel().getGraph();
+		final TIntArrayList roots = RootsIndex.of(graph).getRoots(graph);
+
+		final Worker worker = new Worker(ts);
+		for (int i = 0; i < roots.size(); ++i) {
+			final BucketsWithGraphics.BatchOfGraphics batch = worker.buildBatchOfRoot(roots.get(i), conn.clientIdObj);
+			if (batch != null) dataSender.onNext(batch);
+		}
+	}
+
+	/** Builds the batches of individual roots on a fork-join pool, with one worker
+	 *  per pool thread, and sends them strictly in the order in which the roots were
+	 *  found, each as soon as it is ready; only a few batches are built ahead, so that
+	 *  not the whole project is held in memory. */
+	private void sendRootsInParallel(final BlenderSendingUtils.BlenderConnectionHandle conn,
+	                                 final StreamObserver<BucketsWithGraphics.BatchOfGraphics> dataSender,
+	                                 final TagSetStructure.TagSet ts)
+	throws InterruptedException, ExecutionException
+	{
+		final ModelGraph graph = pluginAppModel.getAppModel().getModel().getGraph();
+		final TIntArrayList roots = RootsIndex.of(graph).getRoots(graph);
+		logService.info("Going to prepare "+roots.size()+" lineages using "+noOfThreads+" threads");
+
+		final ForkJoinPool pool = new ForkJoinPool(noOfThreads);
+		final ThreadLocal<Worker> workers = ThreadLocal.withInitial(() -> new Worker(ts));
+
+		final int maxWaitingBatches = 2 * noOfThreads;
+		final ArrayDeque<Future<BucketsWithGraphics.BatchOfGraphics>> waitingBatches = new ArrayDeque<>(maxWaitingBatches);
+		int nextRoot = 0;
+		try {
+			while (nextRoot < roots.size() || !waitingBatches.isEmpty()) {
+				while (nextRoot < roots.size() && waitingBatches.size() < maxWaitingBatches) {
+					final int rootPoolIndex = roots.get(nextRoot++);
+					waitingBatches.add( pool.submit(() ->
+							workers.get().buildBatchOfRoot(rootPoolIndex, conn.clientIdObj)) );
+				}
+
+				//the network sending is not holding up the graph
+				final BucketsWithGraphics.BatchOfGraphics batch = waitingBatches.poll().get();
+				if (batch != null) dataSender.onNext(batch);
+			}
+		} finally {
+			for (Future<?> batch : waitingBatches) batch.cancel(true);
+			pool.shutdownNow();
+		}
+	}
+
+	/** the connection is released only after Blender has acknowledged all data,
+	 *  the outcome is logged including the amount of the data and the time it took */
+	private void closeWhenAcknowledged(final BlenderSendingUtils.BlenderConnectionHandle conn,
+	                                   final CompletableStreamObserver responses) {
+		responses.getCompletion().whenComplete( (ignored, e) -> {
+			if (e != null)
+				logService.error("Mastodon network sender: Blender has not received the data: "+e.getMessage());
+			else
+				logService.info("Mastodon network sender: "+responses.reportStats());
+			conn.closeConnection();
+		});
+	}
 }
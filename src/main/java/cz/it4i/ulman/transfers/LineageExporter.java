@@ -29,6 +29,8 @@ package cz.it4i.ulman.transfers;
 
 import cz.it4i.ulman.transfers.graphexport.BlenderWriter;
 import cz.it4i.ulman.transfers.graphexport.GraphExportable;
+import cz.it4i.ulman.transfers.graphexport.LineageLayoutEngine;
+import cz.it4i.ulman.transfers.graphexport.TeeGraphExporter;
 import cz.it4i.ulman.transfers.graphexport.ui.util.SortersChooserDlg;
 import cz.it4i.ulman.transfers.graphexport.ui.GraphExportableFetcher;
 import cz.it4i.ulman.transfers.graphexport.ui.yEdGraphMLWriterDlg;
@@ -37,9 +39,6 @@ import cz.it4i.ulman.transfers.graphexport.ui.BlenderWriterDlg;
 import cz.it4i.ulman.transfers.graphexport.leftrightness.DescendantsSorter;
 import cz.it4i.ulman.transfers.graphexport.leftrightness.AbstractDescendantsSorter;
 
-import org.mastodon.collection.RefList;
-import org.mastodon.collection.ref.RefArrayList;
-import org.mastodon.spatial.SpatioTemporalIndex;
 import org.mastodon.model.SelectionModel;
 import org.mastodon.mamut.MamutAppModel;
 import org.mastodon.mamut.model.ModelGraph;
@@ -56,10 +55,17 @@ import org.scijava.command.CommandService;
 import org.scijava.log.LogService;
 import org.scijava.prefs.PrefService;
 
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 
 @Plugin( type = Command.class, name = "Export lineage with generations axis instead of time axis" )
@@ -85,12 +91,27 @@ public class LineageExporter implements Command
 			choices = {"with straight lines","with rectangular lines","with own bending position"} )
 	public String exportMode;
 
-	@Parameter(label = "Where to export the lineage:",
-			choices = {"yEd: into .graphml file","Blender: via an online connection","GraphStreamer: in a preview window"} )
-	public String exportTarget;
+	@Parameter(visibility = ItemVisibility.MESSAGE)
+	private final String exportTargetMsg = "Where to export the lineage (one or more):";
+
+	@Parameter(label = "yEd: into .graphml file")
+	public boolean exportToYEd = true;
+
+	@Parameter(label = "Blender: via an online connection")
+	public boolean exportToBlender = false;
+
+	@Parameter(label = "GraphStreamer: in a preview window")
+	public boolean exportToGraphStreamer = false;
 
 	@Parameter(visibility = ItemVisibility.MESSAGE)
-	private final String exportInfoMsg = "An export-specific dialog may open after 'OK'";
+	private final String exportInfoMsg = "Export-specific dialogs may open after 'OK'";
+
+	@Parameter(label = "Re-export all trees, not only the changed ones:",
+			description = "E.g., when Blender has been restarted since the last export.")
+	private boolean forceFullReexport = false;
+
+	@Parameter(label = "Number of threads for the layout:", min = "1")
+	private int noOfThreads = 1;
 
 	@Parameter
 	private boolean doDebugMessages = false;
@@ -113,12 +134,41 @@ public class LineageExporter implements Command
 					prefService.getInt(dialogClass, "defaultBendingPointAbsoluteOffsetY", -80));
 	}
 
+	/** opens the export-specific dialog, and adds its exporter into the 'targets'
+	 *  unless the dialog is canceled */
+	private void openExportDialog(final Class<? extends Command> dialogClass,
+	                              final Map<String,Object> runParams,
+	                              final List<GraphExportable> targets)
+	throws InterruptedException, ExecutionException
+	{
+		adjustParams(dialogClass, runParams);
+		final CommandModule m = commandService.run(dialogClass, true, runParams).get();
+		if (m.isCanceled()) {
+			logServiceRef.info("Dialog "+m.getInfo().getTitle()+" canceled, not exporting there.");
+			return;
+		}
+
+		final GraphExportable ge = ((GraphExportableFetcher)m.getCommand()).getUnderlyingGraphExportable();
+		//sanity check....
+		if (ge == null) throw new IllegalStateException("Dialog "+m.getInfo().getTitle()+" is broken.");
+
+		//some final tuning
+		if (exportMode.startsWith("with rect"))
+			ge.set_defaultBendingPointAbsoluteOffsetY( -ge.get_yLineStep() );
+		targets.add(ge);
+	}
+
 	@Override
 	public void run()
 	{
 		try {
 			ownLogger = logServiceRef.subLogger("Lineage exports in "+projectID);
 
+			if (!exportToYEd && !exportToBlender && !exportToGraphStreamer) {
+				logServiceRef.error("Selected no export target, doing nothing.");
+				return;
+			}
+
 			//first: do we have some extra dialogs to take care of?
 			sorterOfDaughters = SortersChooserDlg.resolveSorterOfDaughters(sortMode,commandService,appModel,projectID);
 			if (sorterOfDaughters == null) {
@@ -126,51 +176,48 @@ public class LineageExporter implements Command
 				return;
 			}
 
-			Future<CommandModule> future = null;
-			Map<String,Object> runParams = new HashMap<>(10);
-
-			if (exportTarget.startsWith("yEd")) {
-				adjustParams(yEdGraphMLWriterDlg.class, runParams);
-				future = commandService.run(yEdGraphMLWriterDlg.class, true, runParams);
+			final List<GraphExportable> targets = new ArrayList<>(3);
+			if (exportToYEd) {
+				openExportDialog(yEdGraphMLWriterDlg.class, new HashMap<>(10), targets);
 			}
-			else if (exportTarget.startsWith("Blender")) {
+			if (exportToBlender) {
+				final Map<String,Object> runParams = new HashMap<>(10);
 				runParams.put("defaultNodeHeight",10); //to hide this item from the dialog
 				runParams.put("projectID", projectID);
-				adjustParams(BlenderWriterDlg.class, runParams);
-				future = commandService.run(BlenderWriterDlg.class, true, runParams);
+				openExportDialog(BlenderWriterDlg.class, runParams, targets);
 			}
-			else if (exportTarget.startsWith("GraphStreamer")) {
-				adjustParams(GraphStreamViewerDlg.class, runParams);
-				future = commandService.run(GraphStreamViewerDlg.class, true, runParams);
+			if (exportToGraphStreamer) {
+				final Map<String,Object> runParams = new HashMap<>(10);
+				//the exported trees are made of the selected spots, or of all spots if nothing is selected
+				final SelectionModel<Spot, Link> selection = appModel.getSelectionModel();
+				runParams.put("expectedNoOfNodes", selection.isEmpty() //also hides it from the dialog
+						? appModel.getModel().getGraph().vertices().size()
+						: selection.getSelectedVertices().size());
+				openExportDialog(GraphStreamViewerDlg.class, runParams, targets);
 			}
-			else logServiceRef.error("Selected unknown export mode, doing nothing.");
-
-			if (future != null) {
-				//wait for the dialog to be resolved
-				final CommandModule m = future.get();
-				if (!m.isCanceled()) {
-					GraphExportable ge = ((GraphExportableFetcher)m.getCommand()).getUnderlyingGraphExportable();
-					//sanity check....
-					if (ge != null) {
-						//some final tuning
-						if (exportMode.startsWith("with rect"))
-							ge.set_defaultBendingPointAbsoluteOffsetY( -ge.get_yLineStep() );
-						//go!... wait! debug first!
-						if (doDebugGraphics && ge instanceof BlenderWriter &&
-							sorterOfDaughters instanceof AbstractDescendantsSorter) {
-								ownLogger.warn("Sending debug graphics first!");
-								((AbstractDescendantsSorter)sorterOfDaughters).exportDebugGraphics(ge);
-						}
-						//go!
-						selectionModel = appModel.getSelectionModel();
-						isSelectionEmpty = selectionModel.isEmpty();
-						if (isSelectionEmpty) time2Gen2GraphExportable(ge);
-						else time2Gen2GraphExportable_rootsFromSelection(ge);
-					}
-					else throw new IllegalStateException("Dialog "+m.getInfo().getTitle()+" is broken.");
+			if (targets.isEmpty()) {
+				logServiceRef.info("Dialog canceled, exporting nothing.");
+				return;
+			}
+
+			//go!... wait! debug first!
+			if (doDebugGraphics && sorterOfDaughters instanceof AbstractDescendantsSorter) {
+				for (GraphExportable target : targets) {
+					if (!(target instanceof BlenderWriter)) continue;
+					ownLogger.warn("Sending debug graphics first!");
+					((AbstractDescendantsSorter)sorterOfDaughters).exportDebugGraphics(target);
 				}
-				else logServiceRef.info("Dialog canceled, exporting nothing.");
 			}
+
+			//one traversal, possibly into several targets
+			final GraphExportable ge = targets.size() == 1 ? targets.get(0)
+					: new TeeGraphExporter(targets, ownLogger);
+
+			//go!
+			selectionModel = appModel.getSelectionModel();
+			isSelectionEmpty = selectionModel.isEmpty();
+			if (isSelectionEmpty) time2Gen2GraphExportable(ge);
+			else time2Gen2GraphExportable_rootsFromSelection(ge);
 		} catch (InterruptedException e) {
 			logServiceRef.info("Dialog interrupted, doing nothing.");
 		} catch (ExecutionException e) {
@@ -187,8 +234,7 @@ public class LineageExporter implements Command
 		final Link lRef = modelGraph.edgeRef();              //link reference
 		final Spot sRef = modelGraph.vertices().createRef(); //aux spot reference
 
-		int xLeftBound = 0;
-		final int[] xIgnoreCoords = new int[1];
+		final TIntArrayList roots = new TIntArrayList(1000);
 
 		for (Spot spot : selectionModel.getSelectedVertices())
 		{
@@ -217,7 +263,7 @@ public class LineageExporter implements Command
 			if (countBackwardLinks == 0)
 			{
 				ownLogger.info("Discovered root "+spot.getLabel());
-				xLeftBound += discoverEdge(ge,modelGraph, spot, 0,xLeftBound, xIgnoreCoords,0);
+				roots.add(spot.getInternalPoolIndex());
 			}
 
 		}
@@ -225,6 +271,7 @@ public class LineageExporter implements Command
 		modelGraph.vertices().releaseRef(sRef);
 		modelGraph.releaseRef(lRef);
 
+		layoutAndExportTrees(ge, modelGraph, roots, null);
 		ge.close();
 
 		ownLogger.info("generation SELECTED graph rendered");
@@ -234,59 +281,15 @@ public class LineageExporter implements Command
 	/** implements the "LineageExporter" functionality */
 	private void time2Gen2GraphExportable(final GraphExportable ge)
 	{
-		//NB: this method could be in a class of its own... later...
-
-		//shortcuts to the data
-		final int timeFrom = appModel.getMinTimepoint();
-		final int timeTill = appModel.getMaxTimepoint();
 		final ModelGraph modelGraph = appModel.getModel().getGraph();
 
-		//aux Mastodon data: shortcuts and caches/proxies
-		final SpatioTemporalIndex< Spot > spots = appModel.getModel().getSpatioTemporalIndex();
-		final Link lRef = modelGraph.edgeRef();              //link reference
-		final Spot sRef = modelGraph.vertices().createRef(); //aux spot reference
-
-		int xLeftBound = 0;
-		final int[] xIgnoreCoords = new int[1];
-
-		//over all time points
-		for (int time = timeFrom; time <= timeTill; ++time)
-		{
-			//over all spots in the current time point
-			for ( final Spot spot : spots.getSpatialIndex( time ) )
-			{
-				//find how many backward-references (time-wise) this spot has
-				int countBackwardLinks = 0;
-
-				for (int n=0; n < spot.incomingEdges().size(); ++n)
-				{
-					spot.incomingEdges().get(n, lRef).getSource( sRef );
-					if (sRef.getTimepoint() < time)
-					{
-						++countBackwardLinks;
-					}
-				}
-				for (int n=0; n < spot.outgoingEdges().size(); ++n)
-				{
-					spot.outgoingEdges().get(n, lRef).getTarget( sRef );
-					if (sRef.getTimepoint() < time)
-					{
-						++countBackwardLinks;
-					}
-				}
-
-				//can this spot be root?
-				if (countBackwardLinks == 0)
-				{
-					ownLogger.info("Discovered root "+spot.getLabel());
-					xLeftBound += discoverEdge(ge,modelGraph, spot, 0,xLeftBound, xIgnoreCoords,0);
-				}
-			}
-		}
-
-		modelGraph.vertices().releaseRef(sRef);
-		modelGraph.releaseRef(lRef);
+		//roots are the spots with no backward-references (time-wise)
+		final TIntArrayList roots = RootsIndex.of(modelGraph).getRoots(modelGraph);
+		ownLogger.info("Discovered "+roots.size()+" roots");
 
+		//NB: the layouts are re-used only for the whole graph, and when they need not be reported
+		layoutAndExportTrees(ge, modelGraph, roots,
+				doDebugMessages ? null : LineageLayoutCache.of(modelGraph));
 		ge.close();
 
 		ownLogger.info("generation graph rendered");
@@ -300,125 +303,172 @@ public class LineageExporter implements Command
 
 	private DescendantsSorter sorterOfDaughters;
 
-	/** returns width of the tree induced with the given 'root' */
-	private int discoverEdge(final GraphExportable ge, final ModelGraph modelGraph,
-	                         final Spot root,
-	                         final int generation,
-	                         final int xLeftBound,
-	                         final int[] xCoords, final int xCoordsPos)
+	private LineageLayoutEngine createLayoutEngine(final ModelGraph modelGraph)
 	{
-		final boolean doStraightL = exportMode.startsWith("with straight");
-
-		final Spot spot = modelGraph.vertices().createRef(); //aux spot reference
-		final Spot fRef = modelGraph.vertices().createRef(); //spot's ancestor buddy (forward)
-		final Link lRef = modelGraph.edgeRef();              //link reference
-		final Spot tRef = modelGraph.vertices().createRef(); //tmp reference on spot
-		final RefList<Spot> daughterList = new RefArrayList<>(modelGraph.vertices().getRefPool(),3);
-
-		spot.refTo( root );
-		while (true)
-		{
-			//shortcut to the time of the current node/spot
-			final int time = spot.getTimepoint();
-
-			//find how many forward-references (time-wise) this spot has
-			int countForwardLinks = 0;
+		final LineageLayoutEngine engine = new LineageLayoutEngine(modelGraph, sorterOfDaughters, this::isEligible);
+		if (doDebugMessages) engine.debugLogger = ownLogger;
+		return engine;
+	}
 
-			for (int n=0; n < spot.incomingEdges().size(); ++n)
-			{
-				spot.incomingEdges().get(n, lRef).getSource( fRef );
-				if (fRef.getTimepoint() > time && isEligible(fRef))
-				{
-					++countForwardLinks;
-					tRef.refTo(fRef); //keep the last used valid reference
+	/** lays out the trees of the given roots next to each other (in the given order),
+	 *  and exports them, possibly using several threads for the layout; if the 'cache'
+	 *  is given, only the changed trees are laid out (and exported, if the exporter
+	 *  supports replacement of the trees) */
+	private void layoutAndExportTrees(final GraphExportable ge, final ModelGraph modelGraph,
+	                                  final TIntArrayList roots, final LineageLayoutCache cache)
+	{
+		final boolean doStraightL = exportMode.startsWith("with straight");
+		final int columnWidth = ge.get_xColumnWidth();
+
+		//NB: the graph must not change during the layout, otherwise the cache could be
+		//    given already outdated layouts; the export then needs only the layouts and
+		//    the labels, and so it doesn't hold up the graph for its (possibly long) sending
+		final LineageLayoutEngine.Layout[] layouts = new LineageLayoutEngine.Layout[roots.size()];
+		final String[][] labels = new String[roots.size()][];
+		modelGraph.getLock().readLock().lock();
+		try {
+			final TIntArrayList toBeLaidOut = new TIntArrayList(roots.size());
+			if (cache != null) cache.useSettings(sorterOfDaughters.describeSettings()+" with columns "+columnWidth);
+			for (int i = 0; i < roots.size(); ++i) {
+				if (cache != null) layouts[i] = cache.get(roots.get(i));
+				if (layouts[i] != null) {
+					//re-labeled trees need a new layout (sorting may depend on the labels)
+					labels[i] = layouts[i].readLabels(modelGraph);
+					if (!cache.isLabelledAs(roots.get(i), labels[i])) layouts[i] = null;
 				}
+				if (layouts[i] == null) toBeLaidOut.add(i);
 			}
-			for (int n=0; n < spot.outgoingEdges().size(); ++n)
-			{
-				spot.outgoingEdges().get(n, lRef).getTarget( fRef );
-				if (fRef.getTimepoint() > time && isEligible(fRef))
-				{
-					++countForwardLinks;
-					tRef.refTo(fRef);
-				}
+			if (cache != null)
+				ownLogger.info("Re-using layouts of "+(roots.size()-toBeLaidOut.size())+" trees");
+
+			layoutTrees(modelGraph, roots, toBeLaidOut, layouts, columnWidth);
+			for (int w = 0; w < toBeLaidOut.size(); ++w) {
+				final int i = toBeLaidOut.get(w);
+				labels[i] = layouts[i].readLabels(modelGraph);
+				if (cache != null) cache.put(roots.get(i), layouts[i], labels[i]);
 			}
+		} finally {
+			modelGraph.getLock().readLock().unlock();
+		}
 
-			if (countForwardLinks == 1)
-			{
-				//just a vertex on "a string", move over it
-				spot.refTo( tRef );
-			}
-			else
-			{
-				int xRightBound = xLeftBound;
-				final int[] childrenXcoords = new int[countForwardLinks];
+		//the trees are placed next to each other: prefix sum of their widths
+		final int[] xLeftBounds = new int[layouts.length];
+		for (int i = 1; i < layouts.length; ++i)
+			xLeftBounds[i] = xLeftBounds[i-1] + layouts[i-1].getWidth();
 
-				//we're leaf or branching point
-				if (countForwardLinks > 1)
-				{
-					//branching point -> enumerate all descendants and restart searches from them
-					daughterList.clear();
-					for (int n=0; n < spot.incomingEdges().size(); ++n)
-					{
-						spot.incomingEdges().get(n, lRef).getSource( fRef );
-						if (fRef.getTimepoint() > time && isEligible(fRef)) daughterList.add(fRef);
-					}
-					for (int n=0; n < spot.outgoingEdges().size(); ++n)
-					{
-						spot.outgoingEdges().get(n, lRef).getTarget( fRef );
-						if (fRef.getTimepoint() > time && isEligible(fRef)) daughterList.add(fRef);
-					}
-					if (doDebugMessages) sorterOfDaughters.sort(daughterList,ownLogger);
-					else sorterOfDaughters.sort(daughterList);
-
-					//process the daughters in the given order
-					int childCnt = 0;
-					for (Spot d : daughterList) {
-						xRightBound += discoverEdge(ge,modelGraph, d, generation+1,xRightBound, childrenXcoords,childCnt);
-						++childCnt;
-					}
-				}
-				else
-				{
-					//we're a leaf -> pretend a subtree of single column width
-					xRightBound += ge.get_xColumnWidth();
-				}
+		if (cache == null || !ge.supportsTreeReplacement()) {
+			for (int i = 0; i < layouts.length; ++i)
+				layouts[i].exportTo(ge, xLeftBounds[i], labels[i], doStraightL);
+			return;
+		}
 
-				final String rootID = Integer.toString(root.getInternalPoolIndex());
-				xCoords[xCoordsPos] = countForwardLinks == 0
-				                      ? (xRightBound + xLeftBound)/2
-				                      : (childrenXcoords[0] + childrenXcoords[countForwardLinks-1])/2;
-				//gsv.graph.addNode(rootID).addAttribute("xyz", new int[] {!,!,0});
-				ge.addNode(rootID, root.getLabel(),ge.get_defaultNodeColour(),
-				           xCoords[xCoordsPos],ge.get_yLineStep()*generation);
+		//only the trees that are new, changed or moved are (re)exported
+		final String destination = describeTreesDestination(ge);
+		if (forceFullReexport) cache.forgetExportedVersions(destination);
+		final TIntArrayList gone = cache.retainExported(destination, roots);
+		for (int i = 0; i < gone.size(); ++i) ge.removeTree(gone.get(i));
+
+		int exported = 0;
+		for (int i = 0; i < layouts.length; ++i) {
+			final int root = roots.get(i);
+			if (cache.isExported(destination, root, xLeftBounds[i])) continue;
+			ge.startTree(root, labels[i][0]);
+			layouts[i].exportTo(ge, xLeftBounds[i], labels[i], doStraightL);
+			cache.markExported(destination, root, xLeftBounds[i]);
+			++exported;
+		}
+		ownLogger.info("Exported "+exported+" new or changed trees, removed "+gone.size()+" trees");
+	}
 
-				if (countForwardLinks > 1)
-				{
-					int childCnt = 0;
-					//enumerate all ancestors (children) and connect them (to this parent)
-					for (Spot d : daughterList) {
-						//edge
-						final String toID = Integer.toString(d.getInternalPoolIndex());
-						ownLogger.info("generation: "+generation+"   "+rootID+" -> "+toID);
-						if (doStraightL) ge.addStraightLine( rootID, toID );
-						else ge.addBendedLine( rootID, toID,
-								childrenXcoords[childCnt++],ge.get_yLineStep()*(generation+1) );
-					}
-				}
-				else
-				{
-					//leaf is just a vertex node (there's no one to connect to)
-					ownLogger.info("Discovered \"leaf\" "+root.getLabel());
-				}
+	/** describes where and how the trees are exported, the trees exported with the same
+	 *  description need not be exported again (unless they have changed) */
+	private String describeTreesDestination(final GraphExportable ge)
+	{
+		return ge.getTreesDestination() + " " + exportMode
+				+ " with lines step "+ge.get_yLineStep()+" bending "+ge.get_defaultBendingPointAbsoluteOffsetY()
+				+ " nodes "+ge.get_defaultNodeWidth()+"x"+ge.get_defaultNodeHeight()+" colour "+ge.get_defaultNodeColour();
+	}
 
-				//clean up first before exiting
-				modelGraph.vertices().releaseRef(spot);
-				modelGraph.vertices().releaseRef(fRef);
-				modelGraph.vertices().releaseRef(tRef);
-				modelGraph.releaseRef(lRef);
+	/** lays out the trees of the roots at the given positions ('which') in the 'roots',
+	 *  and stores the computed layouts at the same positions in the 'layouts' */
+	private void layoutTrees(final ModelGraph modelGraph, final TIntArrayList roots,
+	                         final TIntArrayList which, final LineageLayoutEngine.Layout[] layouts,
+	                         final int columnWidth)
+	{
+		//NB: the debug messages of several threads would be interleaved
+		if (noOfThreads < 2 || doDebugMessages) {
+			final LineageLayoutEngine engine = createLayoutEngine(modelGraph);
+			for (int w = 0; w < which.size(); ++w) {
+				final int i = which.get(w);
+				layouts[i] = engine.layoutStructure(roots.get(i), 0);
+				LineageLayoutEngine.computeCoordinates(layouts[i], columnWidth);
+			}
+			engine.release();
+			return;
+		}
 
-				return (xRightBound - xLeftBound);
+		//every worker thread is using its own engine, the engines share the sorter
+		//(see DescendantsSorter on why that is fine) but not the spot references
+		final ConcurrentLinkedQueue<LineageLayoutEngine> allEngines = new ConcurrentLinkedQueue<>();
+		final ThreadLocal<LineageLayoutEngine> engines = ThreadLocal.withInitial(() -> {
+			final LineageLayoutEngine e = createLayoutEngine(modelGraph);
+			allEngines.add(e);
+			return e;
+		});
+		//spawn new tasks for the first few branching levels (but not deeper, where the subtrees are small)
+		final int spawningDepth = 32 - Integer.numberOfLeadingZeros(noOfThreads) + 2;
+
+		final ForkJoinPool pool = new ForkJoinPool(noOfThreads);
+		try {
+			final List<ForkJoinTask<LineageLayoutEngine.Layout>> tasks = new ArrayList<>(which.size());
+			for (int w = 0; w < which.size(); ++w) {
+				final int rootPoolIndex = roots.get(which.get(w));
+				tasks.add( pool.submit(() -> {
+					final LineageLayoutEngine.Layout l
+							= new SubtreeLayoutTask(engines, rootPoolIndex, 0, spawningDepth).invoke();
+					LineageLayoutEngine.computeCoordinates(l, columnWidth);
+					return l;
+				}) );
 			}
+			for (int w = 0; w < which.size(); ++w) layouts[which.get(w)] = tasks.get(w).join();
+		} finally {
+			pool.shutdown();
+			allEngines.forEach(LineageLayoutEngine::release);
+		}
+	}
+
+	/** discovers the subtree of the given node, and if not too deep in the tree yet,
+	 *  it does so by discovering the subtrees of the node's daughters in parallel */
+	static class SubtreeLayoutTask extends RecursiveTask<LineageLayoutEngine.Layout> {
+		SubtreeLayoutTask(final ThreadLocal<LineageLayoutEngine> engines,
+		                  final int nodePoolIndex, final int generation, final int spawningDepth) {
+			this.engines = engines;
+			this.nodePoolIndex = nodePoolIndex;
+			this.generation = generation;
+			this.spawningDepth = spawningDepth;
+		}
+
+		final ThreadLocal<LineageLayoutEngine> engines;
+		final int nodePoolIndex;
+		final int generation;
+		final int spawningDepth;
+
+		@Override
+		protected LineageLayoutEngine.Layout compute() {
+			//NB: the engine is used only "atomically" here, so it is not disturbed
+			//    by other tasks that this thread may run while waiting in invokeAll()
+			final LineageLayoutEngine engine = engines.get();
+			if (spawningDepth == 0) return engine.layoutStructure(nodePoolIndex, generation);
+
+			final TIntArrayList daughters = engine.findDaughters(nodePoolIndex);
+			final List<SubtreeLayoutTask> subtasks = new ArrayList<>(daughters.size());
+			for (int i = 0; i < daughters.size(); ++i)
+				subtasks.add( new SubtreeLayoutTask(engines, daughters.get(i), generation+1, spawningDepth-1) );
+			invokeAll(subtasks);
+
+			final LineageLayoutEngine.Layout[] subtrees = new LineageLayoutEngine.Layout[subtasks.size()];
+			for (int i = 0; i < subtrees.length; ++i) subtrees[i] = subtasks.get(i).join();
+			return LineageLayoutEngine.Layout.graft(nodePoolIndex, generation, subtrees);
 		}
 	}
 }
@@ -0,0 +1,238 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2023, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package cz.it4i.ulman.transfers;
+
+import cz.it4i.ulman.transfers.graphexport.LineageLayoutEngine;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.spatial.VertexPositionListener;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Remembers the computed layouts of the lineage trees, keyed by the pool indices
+ * of their roots, and forgets the layout of a tree as soon as any of its spots or
+ * links is changed. The changes are learned via the graph's listeners, the affected
+ * tree is found by walking backward in time from the changed spot to its root.
+ * The cache is built once per graph, obtain it with {@link #of(ModelGraph)}.
+ *
+ * The layouts are valid only for the settings they were computed with, see
+ * {@link #useSettings(String)}, which includes the positions of the sorter's reference
+ * spots, and only for the labels of the spots they were computed with (as the labels
+ * are not watched, they are compared, see {@link #isLabelledAs(int, String[])}).
+ * The cache also remembers which layouts have been exported where (and where
+ * horizontally), so that only the changed trees need to be exported again into
+ * exporters that can replace their trees individually.
+ */
+public class LineageLayoutCache implements GraphListener<Spot, Link>, VertexPositionListener<Spot> {
+	private static final Map<ModelGraph, LineageLayoutCache> caches = new WeakHashMap<>(2);
+
+	/** returns the (shared) cache of the given graph, creates it if needed */
+	public static LineageLayoutCache of(final ModelGraph graph) {
+		synchronized (caches) {
+			return caches.computeIfAbsent(graph, g -> {
+				final LineageLayoutCache c = new LineageLayoutCache();
+				g.addGraphListener(c);
+				g.addVertexPositionListener(c);
+				return c;
+			});
+		}
+	}
+
+	private LineageLayoutCache() {}
+
+	/** description of the settings the cached layouts were computed with */
+	private String settings = "";
+
+	private final TIntObjectHashMap<LineageLayoutEngine.Layout> layouts = new TIntObjectHashMap<>(1000);
+	/** every newly stored layout gets a new version, versions start from 1 */
+	private final TIntIntHashMap versions = new TIntIntHashMap(1000);
+	/** the labels of the layouts' nodes at the time the layouts were computed */
+	private final TIntObjectHashMap<String[]> labels = new TIntObjectHashMap<>(1000);
+	private int lastVersion = 0;
+
+	/** what has been exported into one destination */
+	private static class Exported {
+		final TIntIntHashMap version = new TIntIntHashMap(1000);
+		final TIntIntHashMap xOffset = new TIntIntHashMap(1000);
+	}
+	private final Map<String, Exported> exports = new HashMap<>(4);
+
+	/** layouts computed with other settings are forgotten */
+	public synchronized void useSettings(final String layoutSettings) {
+		if (settings.equals(layoutSettings)) return;
+		settings = layoutSettings;
+		layouts.clear();
+		versions.clear();
+		labels.clear();
+	}
+
+	/** returns null if no valid layout of the tree of the given root is known */
+	public synchronized LineageLayoutEngine.Layout get(final int rootPoolIndex) {
+		return layouts.get(rootPoolIndex);
+	}
+
+	/** the 'nodesLabels' are the labels of the layout's nodes (see Layout.readLabels()) */
+	public synchronized void put(final int rootPoolIndex, final LineageLayoutEngine.Layout layout,
+	                             final String[] nodesLabels) {
+		layouts.put(rootPoolIndex, layout);
+		versions.put(rootPoolIndex, ++lastVersion);
+		labels.put(rootPoolIndex, nodesLabels);
+	}
+
+	/** whether the layout of the given tree was computed when its nodes had the given
+	 *  labels, if not (the spots were re-labeled since then), the layout is forgotten */
+	public synchronized boolean isLabelledAs(final int rootPoolIndex, final String[] nodesLabels) {
+		if (Arrays.equals(labels.get(rootPoolIndex), nodesLabels)) return true;
+		forget(rootPoolIndex);
+		return false;
+	}
+
+	private void forget(final int rootPoolIndex) {
+		layouts.remove(rootPoolIndex);
+		versions.remove(rootPoolIndex);
+		labels.remove(rootPoolIndex);
+	}
+
+	/** whether the current layout of the given tree has already been exported
+	 *  into the destination, and at the same horizontal offset */
+	public synchronized boolean isExported(final String destination, final int rootPoolIndex, final int xOffset) {
+		final Exported e = exports.get(destination);
+		if (e == null || !versions.containsKey(rootPoolIndex)) return false;
+		return e.version.get(rootPoolIndex) == versions.get(rootPoolIndex)
+				&& e.xOffset.get(rootPoolIndex) == xOffset;
+	}
+
+	public synchronized void markExported(final String destination, final int rootPoolIndex, final int xOffset) {
+		final Exported e = exports.computeIfAbsent(destination, k -> new Exported());
+		e.version.put(rootPoolIndex, versions.get(rootPoolIndex));
+		e.xOffset.put(rootPoolIndex, xOffset);
+	}
+
+	/** makes all trees that were exported into the destination to be seen as not yet
+	 *  exported (e.g., when the destination has lost them), but they are still reported
+	 *  by the retainExported() once their roots are gone */
+	public synchronized void forgetExportedVersions(final String destination) {
+		final Exported e = exports.get(destination);
+		//NB: versions start from 1
+		if (e != null) e.version.transformValues(v -> 0);
+	}
+
+	/** forgets, and returns, the trees that were exported into the destination
+	 *  but whose roots are not among the given (current) roots anymore */
+	public synchronized TIntArrayList retainExported(final String destination, final TIntArrayList currentRoots) {
+		final TIntArrayList gone = new TIntArrayList();
+		final Exported e = exports.get(destination);
+		if (e == null) return gone;
+
+		final TIntHashSet current = new TIntHashSet(currentRoots);
+		e.version.forEachKey(root -> {
+			if (!current.contains(root)) gone.add(root);
+			return true;
+		});
+		for (int i = 0; i < gone.size(); ++i) {
+			e.version.remove(gone.get(i));
+			e.xOffset.remove(gone.get(i));
+		}
+		return gone;
+	}
+
+	/** forgets the layout(s) of the tree(s) the given spot belongs to */
+	private void forgetTreeOf(final Spot spot) {
+		if (layouts.isEmpty()) return;
+
+		//NB: it is easier to forget every spot on the way back in time,
+		//    the non-roots are just not found among the cached layouts
+		final ArrayDeque<Spot> toBeVisited = new ArrayDeque<>();
+		final TIntHashSet visited = new TIntHashSet();
+		toBeVisited.add(spot);
+		while (!toBeVisited.isEmpty()) {
+			final Spot s = toBeVisited.poll();
+			final int idx = s.getInternalPoolIndex();
+			if (!visited.add(idx)) continue;
+			forget(idx);
+
+			final int time = s.getTimepoint();
+			for (Link l : s.incomingEdges()) {
+				final Spot n = l.getSource();
+				if (n.getTimepoint() < time) toBeVisited.add(n);
+			}
+			for (Link l : s.outgoingEdges()) {
+				final Spot n = l.getTarget();
+				if (n.getTimepoint() < time) toBeVisited.add(n);
+			}
+		}
+	}
+
+	// ---------------- listeners ----------------
+	@Override
+	public synchronized void graphRebuilt() {
+		layouts.clear();
+		versions.clear();
+		labels.clear();
+	}
+
+	@Override
+	public void vertexAdded(final Spot vertex) {
+		//a new spot is a new root, nothing is known about its tree
+	}
+
+	@Override
+	public synchronized void vertexRemoved(final Spot vertex) {
+		//NB: its links have been removed (and reported) before
+		forgetTreeOf(vertex);
+	}
+
+	@Override
+	public synchronized void edgeAdded(final Link edge) {
+		forgetTreeOf(edge.getSource());
+		forgetTreeOf(edge.getTarget());
+	}
+
+	@Override
+	public synchronized void edgeRemoved(final Link edge) {
+		forgetTreeOf(edge.getSource());
+		forgetTreeOf(edge.getTarget());
+	}
+
+	/** the (left-right) order of daughters may depend on their positions */
+	@Override
+	public synchronized void vertexPositionChanged(final Spot vertex) {
+		forgetTreeOf(vertex);
+	}
+}
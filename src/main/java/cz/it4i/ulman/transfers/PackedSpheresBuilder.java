@@ -0,0 +1,151 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2023, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package cz.it4i.ulman.transfers;
+
+import cz.it4i.ulman.transfers.graphics.protocol.BucketsWithGraphics;
+import net.imglib2.RealLocalizable;
+
+import java.util.Arrays;
+
+/**
+ * Collects spheres into plain primitive arrays (one array per sphere attribute)
+ * and turns them, on demand, into the columnar BucketsWithGraphics.PackedSpheres
+ * message. Unlike the per-sphere SphereParameters (with its nested Vector3D), no
+ * objects are created per sphere here, and the builder can be cleared and reused
+ * for the next batch without re-allocating its arrays.
+ *
+ * The time and color columns are sent with only one value if all spheres share
+ * the same time or color, respectively, as the protocol permits it.
+ *
+ * This class is not thread-safe.
+ */
+public class PackedSpheresBuilder {
+	private float[] x, y, z, radius;
+	private int[] time, color;
+	private int size = 0;
+
+	public PackedSpheresBuilder() {
+		this(1024);
+	}
+
+	public PackedSpheresBuilder(final int initialCapacity) {
+		final int cap = Math.max(initialCapacity, 16);
+		x = new float[cap];
+		y = new float[cap];
+		z = new float[cap];
+		radius = new float[cap];
+		time = new int[cap];
+		color = new int[cap];
+	}
+
+	/** the number of spheres collected so far */
+	public int size() {
+		return size;
+	}
+
+	/** forgets all collected spheres, keeps the allocated memory for the next round */
+	public PackedSpheresBuilder clear() {
+		size = 0;
+		return this;
+	}
+
+	public PackedSpheresBuilder addSphere(final float posX, final float posY, final float posZ,
+	                                      final float sphereRadius,
+	                                      final int timepoint, final int colorXRGB) {
+		if (size == x.length) grow();
+		x[size] = posX;
+		y[size] = posY;
+		z[size] = posZ;
+		radius[size] = sphereRadius;
+		time[size] = timepoint;
+		color[size] = colorXRGB;
+		++size;
+		return this;
+	}
+
+	public PackedSpheresBuilder addSphere(final RealLocalizable pos,
+	                                      final float sphereRadius,
+	                                      final int timepoint, final int colorXRGB) {
+		return addSphere(pos.getFloatPosition(0), pos.getFloatPosition(1), pos.getFloatPosition(2),
+				sphereRadius, timepoint, colorXRGB);
+	}
+
+	private void grow() {
+		final int newCap = x.length + (x.length >> 1);
+		x = Arrays.copyOf(x, newCap);
+		y = Arrays.copyOf(y, newCap);
+		z = Arrays.copyOf(z, newCap);
+		radius = Arrays.copyOf(radius, newCap);
+		time = Arrays.copyOf(time, newCap);
+		color = Arrays.copyOf(color, newCap);
+	}
+
+	/** creates the protocol message from the spheres collected so far */
+	public BucketsWithGraphics.PackedSpheres build() {
+		return build(0, size);
+	}
+
+	/** creates the protocol message from the collected spheres
+	 *  with indices from the interval [from, till) */
+	public BucketsWithGraphics.PackedSpheres build(final int from, final int till) {
+		final BucketsWithGraphics.PackedSpheres.Builder pBuilder
+				= BucketsWithGraphics.PackedSpheres.newBuilder();
+		for (int i = from; i < till; ++i) {
+			pBuilder.addX(x[i]);
+			pBuilder.addY(y[i]);
+			pBuilder.addZ(z[i]);
+			pBuilder.addRadius(radius[i]);
+		}
+
+		if (isUniform(time, from, till)) {
+			if (till > from && time[from] != 0) pBuilder.addTime(time[from]);
+		} else {
+			for (int i = from; i < till; ++i) pBuilder.addTime(time[i]);
+		}
+
+		if (isUniform(color, from, till)) {
+			if (till > from) pBuilder.addColorXRGB(color[from]);
+		} else {
+			for (int i = from; i < till; ++i) pBuilder.addColorXRGB(color[i]);
+		}
+
+		return pBuilder.build();
+	}
+
+	/** places the protocol message with the spheres collected so far into the given batch,
+	 *  any previously placed packed spheres in the batch are replaced */
+	public BucketsWithGraphics.BatchOfGraphics.Builder buildInto(final BucketsWithGraphics.BatchOfGraphics.Builder batch) {
+		return batch.setPackedSpheres( build() );
+	}
+
+	private static boolean isUniform(final int[] values, final int from, final int till) {
+		for (int i = from+1; i < till; ++i)
+			if (values[i] != values[from]) return false;
+		return true;
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2023, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package cz.it4i.ulman.transfers;
+
+import gnu.trove.list.array.TIntArrayList;
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Knows which spots are roots, that is, spots with no neighbor (linked spot)
+ * in an earlier timepoint. The index is built once per graph (obtain it with
+ * {@link #of(ModelGraph)}) and is kept up to date via the graph's listeners:
+ * the spots touched by a change are only remembered, and their root status is
+ * re-evaluated when the roots are asked for next time.
+ *
+ * The roots are reported ordered by their timepoint, and by their pool index within a timepoint.
+ * The graph is read-locked while the index is reading it, which is why the caller must
+ * not hold the index's own monitor when asking (the graph listeners take it while the
+ * graph is locked for writing).
+ */
+public class RootsIndex implements GraphListener<Spot, Link> {
+	private static final Map<ModelGraph, RootsIndex> indices = new WeakHashMap<>(2);
+
+	/** returns the (shared) index of the given graph, creates it if needed */
+	public static RootsIndex of(final ModelGraph graph) {
+		synchronized (indices) {
+			return indices.computeIfAbsent(graph, g -> {
+				final RootsIndex ri = new RootsIndex(g);
+				g.addGraphListener(ri);
+				ri.graphRebuilt();
+				return ri;
+			});
+		}
+	}
+
+	private RootsIndex(final ModelGraph graph) {
+		this.listenedGraph = new WeakReference<>(graph);
+	}
+
+	/** for the graph listeners, weak as the graph is the key of the 'indices' */
+	private final WeakReference<ModelGraph> listenedGraph;
+
+	/** spots that exist in the graph */
+	private final BitSet isAlive = new BitSet();
+	/** spots that are roots (valid only for those not in toBeChecked) */
+	private final BitSet isRoot = new BitSet();
+	/** spots whose root status needs to be re-evaluated */
+	private final BitSet toBeChecked = new BitSet();
+	/** set when the whole graph needs to be re-read */
+	private boolean isRebuildNeeded = true;
+
+	/** last answer, valid until the next change */
+	private TIntArrayList sortedRoots = null;
+
+	/** returns pool indices of all roots in the graph, the caller may modify the returned list */
+	public TIntArrayList getRoots(final ModelGraph graph) {
+		graph.getLock().readLock().lock();
+		try {
+			synchronized (this) {
+				if (isRebuildNeeded) rebuild(graph);
+				if (!toBeChecked.isEmpty()) {
+					updateRoots(graph);
+					sortedRoots = null;
+				}
+				if (sortedRoots == null) sortedRoots = sortRoots(graph);
+				return new TIntArrayList(sortedRoots);
+			}
+		} finally {
+			graph.getLock().readLock().unlock();
+		}
+	}
+
+	/** calls the 'handler' on every root of the graph, in the order of getRoots(),
+	 *  the handler is given always the same (re-used) spot reference, and it is
+	 *  called while the graph is read-locked */
+	public void forEachRoot(final ModelGraph graph, final Consumer<Spot> handler) {
+		graph.getLock().readLock().lock();
+		try {
+			final TIntArrayList roots = getRoots(graph);
+			final Spot rootRef = graph.vertices().createRef();
+			for (int i = 0; i < roots.size(); ++i)
+				handler.accept( graph.vertices().getRefPool().getObject(roots.get(i), rootRef) );
+			graph.vertices().releaseRef(rootRef);
+		} finally {
+			graph.getLock().readLock().unlock();
+		}
+	}
+
+	public boolean isRoot(final Spot spot, final ModelGraph graph) {
+		graph.getLock().readLock().lock();
+		try {
+			synchronized (this) {
+				if (isRebuildNeeded) rebuild(graph);
+				final int idx = spot.getInternalPoolIndex();
+				if (toBeChecked.get(idx)) {
+					toBeChecked.clear(idx);
+					isRoot.set(idx, isAlive.get(idx) && isRootSpot(spot, graph));
+					sortedRoots = null;
+				}
+				return isRoot.get(idx);
+			}
+		} finally {
+			graph.getLock().readLock().unlock();
+		}
+	}
+
+	private void rebuild(final ModelGraph graph) {
+		isAlive.clear();
+		isRoot.clear();
+		toBeChecked.clear();
+		for (Spot s : graph.vertices()) isAlive.set(s.getInternalPoolIndex());
+		toBeChecked.or(isAlive);
+		isRebuildNeeded = false;
+		sortedRoots = null;
+	}
+
+	private void updateRoots(final ModelGraph graph) {
+		final Spot sRef = graph.vertices().createRef();
+		for (int idx = toBeChecked.nextSetBit(0); idx >= 0; idx = toBeChecked.nextSetBit(idx+1)) {
+			isRoot.set(idx, isAlive.get(idx)
+					&& isRootSpot(graph.vertices().getRefPool().getObject(idx, sRef), graph));
+		}
+		toBeChecked.clear();
+		graph.vertices().releaseRef(sRef);
+	}
+
+	private boolean isRootSpot(final Spot spot, final ModelGraph graph) {
+		final Spot sRef = graph.vertices().createRef();
+		final Link lRef = graph.edgeRef();
+		final int time = spot.getTimepoint();
+		boolean isRoot = true;
+		for (int n=0; n < spot.incomingEdges().size() && isRoot; ++n)
+			if (spot.incomingEdges().get(n, lRef).getSource( sRef ).getTimepoint() < time) isRoot = false;
+		for (int n=0; n < spot.outgoingEdges().size() && isRoot; ++n)
+			if (spot.outgoingEdges().get(n, lRef).getTarget( sRef ).getTimepoint() < time) isRoot = false;
+		graph.releaseRef(lRef);
+		graph.vertices().releaseRef(sRef);
+		return isRoot;
+	}
+
+	private TIntArrayList sortRoots(final ModelGraph graph) {
+		final int count = isRoot.cardinality();
+		final long[] timeAndIdx = new long[count];
+		final Spot sRef = graph.vertices().createRef();
+		int i = 0;
+		for (int idx = isRoot.nextSetBit(0); idx >= 0; idx = isRoot.nextSetBit(idx+1)) {
+			final int time = graph.vertices().getRefPool().getObject(idx, sRef).getTimepoint();
+			timeAndIdx[i++] = ((long)time << 32) | idx;
+		}
+		graph.vertices().releaseRef(sRef);
+		Arrays.sort(timeAndIdx);
+
+		final TIntArrayList roots = new TIntArrayList(count);
+		for (long ti : timeAndIdx) roots.add((int)ti);
+		return roots;
+	}
+
+	// ---------------- GraphListener ----------------
+	@Override
+	public synchronized void graphRebuilt() {
+		isRebuildNeeded = true;
+		sortedRoots = null;
+	}
+
+	@Override
+	public synchronized void vertexAdded(final Spot vertex) {
+		final int idx = vertex.getInternalPoolIndex();
+		isAlive.set(idx);
+		toBeChecked.set(idx);
+	}
+
+	@Override
+	public synchronized void vertexRemoved(final Spot vertex) {
+		final int idx = vertex.getInternalPoolIndex();
+		isAlive.clear(idx);
+		toBeChecked.set(idx);
+	}
+
+	@Override
+	public synchronized void edgeAdded(final Link edge) {
+		markSpotsOf(edge);
+	}
+
+	@Override
+	public synchronized void edgeRemoved(final Link edge) {
+		//NB: the edge is still in the graph now, its spots will be checked only afterwards
+		markSpotsOf(edge);
+	}
+
+	private void markSpotsOf(final Link edge) {
+		final ModelGraph g = listenedGraph.get();
+		if (g == null) return;
+		final Spot sRef = g.vertices().createRef();
+		toBeChecked.set( edge.getSource(sRef).getInternalPoolIndex() );
+		toBeChecked.set( edge.getTarget(sRef).getInternalPoolIndex() );
+		g.vertices().releaseRef(sRef);
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2023, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package cz.it4i.ulman.transfers;
+
+import cz.it4i.ulman.transfers.graphics.protocol.BucketsWithGraphics;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Remembers what spheres, identified by non-negative (and preferably dense)
+ * integer IDs such as Spot.getInternalPoolIndex(), have been sent to the display
+ * (and thus what the display is likely showing), and figures out which spheres
+ * need to be sent in the next round of updates.
+ *
+ * One round of updates goes like this: call beginRound(), offer() every sphere
+ * that should be displayed after this round, then finishRoundInto(). The latter
+ * fills the BatchOfGraphicsUpdate with the spheres that have been added or changed
+ * since the previous round, and with IDs of the spheres that were not offered
+ * in this round (and should thus be removed from the display).
+ *
+ * This class is not thread-safe.
+ */
+public class SpheresDeltaTracker {
+	//the snapshot of what was sent, indexed with sphere IDs
+	private float[] x, y, z, radius;
+	private int[] time, color;
+	private BitSet sentIDs = new BitSet();
+	private BitSet seenIDs = new BitSet();
+
+	//the current round
+	private final PackedSpheresBuilder changedSpheres = new PackedSpheresBuilder();
+	private int[] changedIDs = new int[1024];
+	private boolean isClearFirstRound = true;
+	private int noOfRemovedInLastRound = 0;
+
+	public SpheresDeltaTracker() {
+		this(1024);
+	}
+
+	public SpheresDeltaTracker(final int expectedMaxID) {
+		final int cap = Math.max(expectedMaxID, 16);
+		x = new float[cap];
+		y = new float[cap];
+		z = new float[cap];
+		radius = new float[cap];
+		time = new int[cap];
+		color = new int[cap];
+	}
+
+	/** forgets the whole snapshot, the next round will therefore send everything
+	 *  and will ask the display to drop everything it has had before */
+	public void reset() {
+		sentIDs.clear();
+		isClearFirstRound = true;
+	}
+
+	public void beginRound() {
+		seenIDs.clear();
+		changedSpheres.clear();
+	}
+
+	public void offer(final int id,
+	                  final float posX, final float posY, final float posZ,
+	                  final float sphereRadius,
+	                  final int timepoint, final int colorXRGB) {
+		if (id >= x.length) grow(id);
+		seenIDs.set(id);
+
+		if (sentIDs.get(id)
+				&& x[id] == posX && y[id] == posY && z[id] == posZ
+				&& radius[id] == sphereRadius && time[id] == timepoint && color[id] == colorXRGB) return;
+
+		x[id] = posX;
+		y[id] = posY;
+		z[id] = posZ;
+		radius[id] = sphereRadius;
+		time[id] = timepoint;
+		color[id] = colorXRGB;
+
+		if (changedSpheres.size() == changedIDs.length)
+			changedIDs = Arrays.copyOf(changedIDs, 2 * changedIDs.length);
+		changedIDs[changedSpheres.size()] = id;
+		changedSpheres.addSphere(posX,posY,posZ, sphereRadius, timepoint,colorXRGB);
+	}
+
+	private void grow(final int id) {
+		final int newCap = Math.max(id+1, x.length + (x.length >> 1));
+		x = Arrays.copyOf(x, newCap);
+		y = Arrays.copyOf(y, newCap);
+		z = Arrays.copyOf(z, newCap);
+		radius = Arrays.copyOf(radius, newCap);
+		time = Arrays.copyOf(time, newCap);
+		color = Arrays.copyOf(color, newCap);
+	}
+
+	/**
+	 * Closes the current round, the snapshot now reflects what has been offered in it.
+	 *
+	 * @param update message builder to be filled with the changes, its header
+	 *               (e.g. clientID or dataName) is left untouched
+	 * @return true if there is something to be sent, i.e., the update is not empty
+	 */
+	public boolean finishRoundInto(final BucketsWithGraphics.BatchOfGraphicsUpdate.Builder update) {
+		update.clearRemovedIDs();
+		update.clearSphereIDs();
+		update.setClearFirst(isClearFirstRound);
+
+		noOfRemovedInLastRound = 0;
+		if (!isClearFirstRound) {
+			for (int id = sentIDs.nextSetBit(0); id >= 0; id = sentIDs.nextSetBit(id+1)) {
+				if (!seenIDs.get(id)) {
+					update.addRemovedIDs(id);
+					++noOfRemovedInLastRound;
+				}
+			}
+		}
+
+		for (int i = 0; i < changedSpheres.size(); ++i) update.addSphereIDs(changedIDs[i]);
+		update.setSpheres( changedSpheres.build() );
+
+		//the seen ones are the sent ones now
+		final BitSet tmp = sentIDs;
+		sentIDs = seenIDs;
+		seenIDs = tmp;
+
+		final boolean somethingToSend = isClearFirstRound
+				|| noOfRemovedInLastRound > 0 || changedSpheres.size() > 0;
+		isClearFirstRound = false;
+		return somethingToSend;
+	}
+
+	public int getNoOfChangedInLastRound() {
+		return changedSpheres.size();
+	}
+
+	public int getNoOfRemovedInLastRound() {
+		return noOfRemovedInLastRound;
+	}
+}
@@ -28,12 +28,14 @@
 package cz.it4i.ulman.transfers.embeddings;
 
 import cz.it4i.ulman.transfers.BlenderSendingUtils;
-import cz.it4i.ulman.transfers.graphics.EmptyIgnoringStreamObservers;
+import cz.it4i.ulman.transfers.RootsIndex;
+import cz.it4i.ulman.transfers.graphics.CompletableStreamObserver;
 import cz.it4i.ulman.transfers.graphics.protocol.BucketsWithGraphics;
 import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import org.joml.Vector3d;
 import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
 import org.mastodon.mamut.plugin.MamutPluginAppModel;
 import org.mastodon.mamut.tomancak.util.SpotsIterator;
@@ -182,8 +184,9 @@ public class FlatView extends DynamicCommand {
 			conn.sendInitialIntroHandshake();
 
 			//now keep pushing data away to the channel
+			final CompletableStreamObserver responses = new CompletableStreamObserver();
 			final StreamObserver<BucketsWithGraphics.BatchOfGraphics> dataSender
-					= conn.commContinuous.replaceGraphics(new EmptyIgnoringStreamObservers());
+					= conn.replaceGraphics(responses);
 
 			final BucketsWithGraphics.Vector3D.Builder vBuilder
 					= BucketsWithGraphics.Vector3D.newBuilder();
@@ -223,7 +226,8 @@ public class FlatView extends DynamicCommand {
 			}
 			//end of: send debug data
 
-			visitor.visitRootsFromEntireGraph( root -> {
+			final ModelGraph graph = pluginAppModel.getAppModel().getModel().getGraph();
+			RootsIndex.of(graph).forEachRoot(graph, root -> {
 				final BucketsWithGraphics.BatchOfGraphics.Builder nodeBuilder = BucketsWithGraphics.BatchOfGraphics.newBuilder()
 						.setClientID(conn.clientIdObj)
 						.setCollectionName(dataName)
@@ -259,8 +263,7 @@ public class FlatView extends DynamicCommand {
 				dataSender.onNext( nodeBuilder.build() );
 			});
 			dataSender.onCompleted();
-
-			conn.closeConnection();
+			closeWhenAcknowledged(conn, responses);
 		}
 		catch (StatusRuntimeException e) {
 			logService.error("Mastodon network sender: GRPC: " + e.getMessage());
@@ -269,4 +272,17 @@ public class FlatView extends DynamicCommand {
 			e.printStackTrace();
 		}
 	}
-}
\ No newline at end of file
+
+	/** the connection is released only after Blender has acknowledged all data,
+	 *  the outcome is logged including the amount of the data and the time it took */
+	private void closeWhenAcknowledged(final BlenderSendingUtils.BlenderConnectionHandle conn,
+	                                   final CompletableStreamObserver responses) {
+		responses.getCompletion().whenComplete( (ignored, e) -> {
+			if (e != null)
+				logService.error("Mastodon network sender: Blender has not received the data: "+e.getMessage());
+			else
+				logService.info("Mastodon network sender: "+responses.reportStats());
+			conn.closeConnection();
+		});
+	}
+}
@@ -27,19 +27,21 @@
  */
 package cz.it4i.ulman.transfers.graphexport;
 
+import cz.it4i.ulman.transfers.BlenderSendingUtils;
+import cz.it4i.ulman.transfers.PackedSpheresBuilder;
 import cz.it4i.ulman.transfers.graphics.protocol.BucketsWithGraphics;
-import cz.it4i.ulman.transfers.graphics.EmptyIgnoringStreamObservers;
+import cz.it4i.ulman.transfers.graphics.ChunkingBatchesSender;
+import cz.it4i.ulman.transfers.graphics.CompletableStreamObserver;
+import cz.it4i.ulman.transfers.graphics.FlowControlledSender;
 import cz.it4i.ulman.transfers.graphics.protocol.ClientToServerGrpc;
-import io.grpc.ConnectivityState;
+import gnu.trove.map.hash.TObjectIntHashMap;
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
 import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import org.scijava.log.LogService;
 import org.scijava.log.StderrLogService;
 
-import java.util.HashMap;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
 
 public class BlenderWriter extends AbstractGraphExporter implements GraphExportable
 {
@@ -47,9 +49,21 @@ public class BlenderWriter extends AbstractGraphExporter implements GraphExporta
 	public float lineRadius = 3.f;
 	public float z_coord = 0.f;
 
+	/** if enabled, the nodes given in bulk (with addNodesAndLines()) are sent as
+	 *  packed spheres, which requires the Blender side to understand this part
+	 *  of the protocol; otherwise, they are sent as usual spheres */
+	public boolean usePackedSpheres = false;
+
+	/** if positive, the currently built batch is sent out (and the building continues
+	 *  in a fresh message) when its size exceeds this number of bytes, which requires
+	 *  the Blender side to understand the continued batches; otherwise, batches are
+	 *  not split (e.g. set it to BlenderSendingUtils.DEFAULT_MAX_MESSAGE_SIZE) */
+	public int maxMessageSize = 0;
+
 	private ClientToServerGrpc.ClientToServerStub commContinuous;
 	private ClientToServerGrpc.ClientToServerBlockingStub commBlocking;
 	private ManagedChannel channel;
+	private BlenderSendingUtils.BlenderConnectionHandle pooledConnection = null;
 	private String url;
 	final LogService logger;
 
@@ -59,14 +73,31 @@ public class BlenderWriter extends AbstractGraphExporter implements GraphExporta
 		this(hostAndPort, clientName, new StderrLogService());
 	}
 
+	/** the connection is taken from (and returned back to) the shared pool of the BlenderSendingUtils */
 	public BlenderWriter(final String hostAndPort,
 	                     final String clientName,
 	                     LogService logService)
 	{
-		this(ManagedChannelBuilder.forTarget(hostAndPort).usePlaintext().build(), clientName, logService);
+		logger = logService;
 		url = hostAndPort;
+
+		try {
+			pooledConnection = BlenderSendingUtils.connectToBlender(hostAndPort, clientName);
+			channel = null;
+			commContinuous = pooledConnection.commContinuous;
+			commBlocking = pooledConnection.commBlocking;
+			isValid = true;
+
+			setClientName(clientName);
+			introduceClient();
+			mainDataStream = FlowControlledSender.start(commContinuous::addGraphics, mainDataStreamResponses);
+		} catch (StatusRuntimeException e) {
+			logger.warn("RPC client-side failed while accessing " + url
+					+ ", details follow:\n" + e.getMessage());
+		}
 	}
 
+	/** the given channel will be shut down when this writer is closed */
 	public BlenderWriter(final ManagedChannel someExistingChannel,
 	                     final String clientName,
 	                     LogService logService)
@@ -81,7 +112,7 @@ public class BlenderWriter extends AbstractGraphExporter implements GraphExporta
 
 			setClientName(clientName);
 			introduceClient();
-			mainDataStream = commContinuous.addGraphics(new EmptyIgnoringStreamObservers());
+			mainDataStream = FlowControlledSender.start(commContinuous::addGraphics, mainDataStreamResponses);
 		} catch (StatusRuntimeException e) {
 			logger.warn("RPC client-side failed while accessing " + url
 					+ ", details follow:\n" + e.getMessage());
@@ -95,45 +126,60 @@ public class BlenderWriter extends AbstractGraphExporter implements GraphExporta
 	boolean isValid = false;
 	boolean isClosed = false;
 
+	final CompletableStreamObserver mainDataStreamResponses = new CompletableStreamObserver();
+	final CompletableStreamObserver treesDataStreamResponses = new CompletableStreamObserver();
+	private CompletableFuture<Void> closing = null;
+
+	/** Starts closing without waiting for it, see closeAsync(). */
 	@Override
 	public void close() {
-		// ManagedChannels use resources like threads and TCP connections. To prevent leaking these
-		// resources the channel should be shut down when it will no longer be used. If it may be used
-		// again leave it running.
+		closeAsync();
+	}
+
+	/**
+	 * Sends the last batch, finishes the stream, and returns immediately. The returned
+	 * future completes once Blender has acknowledged the whole stream (or the stream
+	 * has failed), after which the connection is returned to the pool (or the channel
+	 * given to this writer is shut down in the background).
+	 */
+	public synchronized CompletableFuture<Void> closeAsync() {
+		if (closing != null) return closing;
+		isClosed = true;
+
 		logger.info("connection to Blender is closing...");
 		try {
-			if (nodeBuilder != null && mainDataStream != null) {
-				mainDataStream.onNext( nodeBuilder.build() );
+			if (mainDataStream != null) {
+				if (nodeBuilder != null) {
+					nodeBuilderStream.onNext( nodeBuilder.build() );
+					logger.info("...sent last batch");
+				}
 				mainDataStream.onCompleted();
-				logger.info("...sent last batch");
-			}
-
-			//first, make sure the channel describe itself as "READY"
-			//logger.info("state: "+channel.getState(false).name());
-			int wantStillWaitTime = 20;
-			final int checkingPeriod = 2;
-			while (channel.getState(false) != ConnectivityState.READY && wantStillWaitTime > 0) {
-				wantStillWaitTime -= checkingPeriod;
-				Thread.sleep(checkingPeriod * 1000); //seconds -> milis
+				if (treesDataStream != null) treesDataStream.onCompleted();
+			} else {
+				mainDataStreamResponses.onCompleted();
 			}
-			//but even when it claims "READY", it still needs some grace time to finish any commencing transfers;
-			//request it to stop whenever it can, then keep asking when it's done
-			channel.shutdown();
-			wantStillWaitTime = 20;
-			while (!channel.isTerminated() && wantStillWaitTime > 0) {
-				wantStillWaitTime -= checkingPeriod;
-				Thread.sleep(checkingPeriod * 1000); //seconds -> milis
-			}
-			//last 10secs extra if it is still not closed...
-			channel.awaitTermination(10, TimeUnit.SECONDS);
-		}
-		catch (InterruptedException e) {
-			/* don't care that waiting was interrupted */
+			if (treesDataStream == null) treesDataStreamResponses.onCompleted();
 		} catch (StatusRuntimeException e) {
-			logger.error("Mastodon network sender failed for "+url
-				+", details follow:\n"+e.getMessage());
+			mainDataStreamResponses.onError(e);
+			treesDataStreamResponses.onError(e);
 		}
-		isClosed = true;
+
+		closing = CompletableFuture.allOf(mainDataStreamResponses.getCompletion(),
+				treesDataStreamResponses.getCompletion()).handle( (ignored, e) -> {
+			if (e != null) {
+				logger.error("Mastodon network sender failed for "+url
+					+", details follow:\n"+e.getMessage());
+			} else {
+				logger.info("...Blender has received all data");
+			}
+			// ManagedChannels use resources like threads and TCP connections. To prevent leaking these
+			// resources the channel should be shut down when it will no longer be used. If it may be used
+			// again leave it running, which is what the pool takes care of.
+			if (pooledConnection != null) pooledConnection.closeConnection();
+			else if (channel != null) BlenderSendingUtils.closeChannelAsync(channel);
+			return null;
+		});
+		return closing;
 	}
 
 	public void finalize()
@@ -162,14 +208,51 @@ public class BlenderWriter extends AbstractGraphExporter implements GraphExporta
 
 	StreamObserver<BucketsWithGraphics.BatchOfGraphics> mainDataStream = null;
 	BucketsWithGraphics.BatchOfGraphics.Builder nodeBuilder = null;
+	int nodeBuilderSize = 0;
+
+	/** the stream into which the current nodeBuilder goes, it is either the main
+	 *  (adding) stream, or the (replacing) stream of the individual trees */
+	StreamObserver<BucketsWithGraphics.BatchOfGraphics> nodeBuilderStream = null;
+	StreamObserver<BucketsWithGraphics.BatchOfGraphics> treesDataStream = null;
+	/** the name given in startSendingGraphics(), the trees are named after it */
+	String treesBaseName = "lineage";
+
+	/** sends the so-far-built part of the current batch if it is too large already,
+	 *  the rest of it will come in the next message(s) with the same name and ID
+	 *  (and flagged as continuation for the sake of the replaceGraphics()) */
+	void flushIfTooLarge(final int addedBytes)
+	{
+		nodeBuilderSize += addedBytes + 6; //+6 is the upper estimate of the tag and length
+		if (maxMessageSize <= 0 || nodeBuilderSize < maxMessageSize || nodeBuilderStream == null) return;
+		sendBatchAndContinue();
+	}
+
+	/** sends the so-far-built part of the current batch, the building continues in a fresh message */
+	void sendBatchAndContinue()
+	{
+		nodeBuilderStream.onNext( nodeBuilder.build() );
+		//NB: the flag matters only for the replacing stream, where it
+		//    prevents the next message from clearing this one's content
+		nodeBuilder.clearSpheres().clearLines().clearVectors().clearPackedSpheres().setContinuesPreviousBatch(true);
+		nodeBuilderSize = 0;
+	}
 
 	public void startSendingGraphics(final String nodeName, final int nodeID)
 	{
-		if (nodeBuilder != null && mainDataStream != null) {
-			mainDataStream.onNext( nodeBuilder.build() );
+		startBatch(nodeName, nodeID, mainDataStream);
+		treesBaseName = nodeName;
+	}
+
+	private void startBatch(final String nodeName, final int nodeID,
+	                        final StreamObserver<BucketsWithGraphics.BatchOfGraphics> stream)
+	{
+		if (nodeBuilder != null && nodeBuilderStream != null) {
+			nodeBuilderStream.onNext( nodeBuilder.build() );
 		}
 
 		//new building
+		nodeBuilderSize = 0;
+		nodeBuilderStream = stream;
 		nodeBuilder = BucketsWithGraphics.BatchOfGraphics.newBuilder()
 					.setClientID( currentCid )
 					.setCollectionName( currentCollectionName )
@@ -177,6 +260,50 @@ public class BlenderWriter extends AbstractGraphExporter implements GraphExporta
 					.setDataID( nodeID );
 	}
 
+	/** the trees are sent as individual batches, and with replaceGraphics(), in order
+	 *  to replace their content from previous exports (into the same collection) */
+	@Override
+	public boolean supportsTreeReplacement() {
+		return true;
+	}
+
+	@Override
+	public String getTreesDestination() {
+		return url+"/"+currentCid.getClientName()+"/"+currentCollectionName+"/"+treesBaseName
+				+" with lines "+lineRadius+" at z "+z_coord;
+	}
+
+	/** NB: the name of the tree's batch is made of the root's ID (and not of its
+	 *  label) to stay the same even when the root is relabeled */
+	String treeBatchName(final int rootId) {
+		return treesBaseName+" #"+rootId;
+	}
+
+	private void startTreesStreamIfNeeded() {
+		if (treesDataStream == null)
+			treesDataStream = FlowControlledSender.start(commContinuous::replaceGraphics, treesDataStreamResponses);
+	}
+
+	@Override
+	public void startTree(final int rootId, final String rootLabel) {
+		if (!isValid) return;
+		startTreesStreamIfNeeded();
+		startBatch(treeBatchName(rootId), rootId, treesDataStream);
+	}
+
+	@Override
+	public void removeTree(final int rootId) {
+		if (!isValid) return;
+		startTreesStreamIfNeeded();
+		//replacing with nothing
+		treesDataStream.onNext( BucketsWithGraphics.BatchOfGraphics.newBuilder()
+				.setClientID( currentCid )
+				.setCollectionName( currentCollectionName )
+				.setDataName( treeBatchName(rootId) )
+				.setDataID( rootId )
+				.build() );
+	}
+
 	public void sendMessage(final String message)
 	{
 		final BucketsWithGraphics.TextMessage m
@@ -193,20 +320,16 @@ public class BlenderWriter extends AbstractGraphExporter implements GraphExporta
 	}
 	// -----------------------------------------------------------------------------
 
-	HashMap<Integer,Float> xs = new HashMap<>(10000);
-	HashMap<Integer,Float> ys = new HashMap<>(10000);
-	float memorizeAndReturn(int id, float value, final HashMap<Integer,Float> memory) {
-		memory.put(id,value);
-		return value;
-	}
+	final NodeCoordinatesMemory coords = new NodeCoordinatesMemory();
 
-	HashMap<String,Integer> ids = new HashMap<>(10000);
-	int nextAvailId = 1;
+	/** the String IDs are translated to negative numbers to keep them apart from the int IDs */
+	final TObjectIntHashMap<String> ids = new TObjectIntHashMap<>(100);
+	int nextAvailId = -1;
 	int translateID(final String string_id) {
-		int int_id = ids.getOrDefault(string_id, -1);
-		if (int_id == -1) {
+		int int_id = ids.get(string_id); //NB: 0 if not found
+		if (int_id == 0) {
 			int_id = nextAvailId;
-			nextAvailId++;
+			nextAvailId--;
 			ids.put(string_id, int_id);
 		}
 		return int_id;
@@ -220,12 +343,20 @@ public class BlenderWriter extends AbstractGraphExporter implements GraphExporta
 
 	@Override
 	public void addNode(String id, String label, int colorRGB, int x, int y, int width, int height) {
+		addNode(translateID(id), label,colorRGB, x,y, width,height);
+	}
+
+	@Override
+	public void addNode(int id, String label, int colorRGB, int x, int y) {
+		addNode(id,label,colorRGB,x,y,defaultNodeWidth,defaultNodeHeight);
+	}
+
+	@Override
+	public void addNode(int i, String label, int colorRGB, int x, int y, int width, int height) {
 		if (!isValid) return;
 
 		y *= -1;
-		final int i = translateID(id);
-		memorizeAndReturn(i, x, xs);
-		memorizeAndReturn(i, y, ys);
+		coords.set(i, x, y);
 
 		BucketsWithGraphics.SphereParameters.Builder s = BucketsWithGraphics.SphereParameters.newBuilder();
 		s.setCentre( BucketsWithGraphics.Vector3D.newBuilder()
@@ -234,26 +365,35 @@ public class BlenderWriter extends AbstractGraphExporter implements GraphExporta
 		s.setRadius(width);
 		s.setColorXRGB(colorRGB);
 		//logger.info("adding sphere: "+s);
-		nodeBuilder.addSpheres(s);
+		final BucketsWithGraphics.SphereParameters sphere = s.build();
+		nodeBuilder.addSpheres(sphere);
+		flushIfTooLarge(sphere.getSerializedSize());
 	}
 
 	@Override
 	public void addStraightLine(String fromId, String toId) {
-		if (!isValid) return;
+		addStraightLine(translateID(fromId), translateID(toId));
+	}
 
-		final int fi = translateID(fromId);
-		final int ti = translateID(toId);
+	@Override
+	public void addStraightLine(int fi, int ti) {
+		if (!isValid) return;
+		addLine(coords.getX(fi),coords.getY(fi), coords.getX(ti),coords.getY(ti));
+	}
 
-		BucketsWithGraphics.LineParameters.Builder l = BucketsWithGraphics.LineParameters.newBuilder();
-		l.setStartPos( BucketsWithGraphics.Vector3D.newBuilder()
-				.setX(xs.get(fi)).setY(z_coord).setZ(ys.get(fi)).build() );
-		l.setEndPos( BucketsWithGraphics.Vector3D.newBuilder()
-				.setX(xs.get(ti)).setY(z_coord).setZ(ys.get(ti)).build() );
-		l.setTime(0);
-		l.setRadius(lineRadius);
-		l.setColorIdx(0);
-		//logger.info("adding line: "+l);
-		nodeBuilder.addLines(l);
+	private final BucketsWithGraphics.LineParameters.Builder lBuilder
+			= BucketsWithGraphics.LineParameters.newBuilder().setTime(0).setColorIdx(0);
+	private final BucketsWithGraphics.Vector3D.Builder vBuilder
+			= BucketsWithGraphics.Vector3D.newBuilder();
+
+	/** adds line between the given (already y-flipped) points, re-using the builders */
+	private void addLine(final float fromX, final float fromY, final float toX, final float toY) {
+		lBuilder.setStartPos( vBuilder.setX(fromX).setY(z_coord).setZ(fromY) );
+		lBuilder.setEndPos( vBuilder.setX(toX).setY(z_coord).setZ(toY) );
+		lBuilder.setRadius(lineRadius);
+		final BucketsWithGraphics.LineParameters line = lBuilder.build();
+		nodeBuilder.addLines(line);
+		flushIfTooLarge(line.getSerializedSize());
 	}
 
 	@Override
@@ -269,26 +409,20 @@ public class BlenderWriter extends AbstractGraphExporter implements GraphExporta
 
 	@Override
 	public void addBendedLine(String fromId, String toId, int toX, int toY, int bendingOffsetY) {
-		if (!isValid) return;
-
-		final int fid = translateID(fromId);
-		final int tid = translateID(toId);
+		addBendedLine(translateID(fromId), translateID(toId), toX,toY, bendingOffsetY);
+	}
 
-		BucketsWithGraphics.LineParameters.Builder l = BucketsWithGraphics.LineParameters.newBuilder();
-		l.setStartPos( BucketsWithGraphics.Vector3D.newBuilder()
-				.setX(xs.get(fid)).setY(z_coord).setZ(ys.get(fid)).build() );
-		l.setEndPos( BucketsWithGraphics.Vector3D.newBuilder()
-				.setX(xs.get(tid)).setY(z_coord).setZ(ys.get(tid)-bendingOffsetY).build() );
-		l.setTime(0);
-		l.setRadius(lineRadius);
-		l.setColorIdx(0);
-		nodeBuilder.addLines(l);
+	@Override
+	public void addBendedLine(int fromId, int toId, int toX, int toY) {
+		addBendedLine(fromId,toId, toX,toY, defaultBendingPointAbsoluteOffsetY);
+	}
 
-		l.setStartPos( BucketsWithGraphics.Vector3D.newBuilder()
-				.setX(xs.get(tid)).setY(z_coord).setZ(ys.get(tid)-bendingOffsetY).build() );
-		l.setEndPos( BucketsWithGraphics.Vector3D.newBuilder()
-				.setX(xs.get(tid)).setY(z_coord).setZ(ys.get(tid)).build() );
-		nodeBuilder.addLines(l);
+	@Override
+	public void addBendedLine(int fid, int tid, int toX, int toY, int bendingOffsetY) {
+		if (!isValid) return;
+		final float bendY = coords.getY(tid)-bendingOffsetY;
+		addLine(coords.getX(fid),coords.getY(fid), coords.getX(tid),bendY);
+		addLine(coords.getX(tid),bendY, coords.getX(tid),coords.getY(tid));
 	}
 
 	@Override
@@ -296,4 +430,52 @@ public class BlenderWriter extends AbstractGraphExporter implements GraphExporta
 		addNode(newNodeID, label,colorRGB, x,y);
 		addBendedLine(parentNodeID, newNodeID, x,y);
 	}
+
+	// -----------------------------------------------------------------------------
+
+	private final PackedSpheresBuilder packedBuilder = new PackedSpheresBuilder();
+
+	/** the nodes are sent as packed spheres (in as few messages as possible), if
+	 *  enabled with usePackedSpheres, the lines follow as usually, but without creating
+	 *  new builders for every line */
+	@Override
+	public void addNodesAndLines(final int count,
+	                             final int[] ids, final String[] labels, final int[] colours,
+	                             final int[] xs, final int[] ys,
+	                             final int[] parentIds, final int[] bendingOffsetsY)
+	{
+		if (!isValid) return;
+
+		if (usePackedSpheres) {
+			packedBuilder.clear();
+			for (int i = 0; i < count; ++i) {
+				coords.set(ids[i], xs[i], -ys[i]);
+				packedBuilder.addSphere(xs[i], z_coord, -ys[i], defaultNodeWidth, 0, colours[i]);
+			}
+			final int spheresPerMessage = maxMessageSize > 0
+					? Math.max(maxMessageSize / ChunkingBatchesSender.PACKED_SPHERE_BYTES, 1) : Math.max(count, 1);
+			for (int from = 0; from < count; from += spheresPerMessage) {
+				//one batch holds only one "pack"
+				if (nodeBuilder.hasPackedSpheres() && nodeBuilderStream != null) sendBatchAndContinue();
+				final BucketsWithGraphics.PackedSpheres spheres
+						= packedBuilder.build(from, Math.min(from+spheresPerMessage, count));
+				nodeBuilder.setPackedSpheres(spheres);
+				flushIfTooLarge(spheres.getSerializedSize());
+			}
+		} else {
+			for (int i = 0; i < count; ++i) addNode(ids[i], labels[i], colours[i], xs[i], ys[i]);
+		}
+
+		for (int i = 0; i < count; ++i) {
+			final int p = parentIds[i];
+			if (p < 0) continue;
+			if (bendingOffsetsY == null) {
+				addLine(coords.getX(p),coords.getY(p), xs[i],-ys[i]);
+			} else {
+				final float bendY = -ys[i]-bendingOffsetsY[i];
+				addLine(coords.getX(p),coords.getY(p), xs[i],bendY);
+				addLine(xs[i],bendY, xs[i],-ys[i]);
+			}
+		}
+	}
 }
@@ -85,6 +85,86 @@ public interface GraphExportable
 	                                  final String label, final int colorRGB,
 	                                  final int x, final int y);
 
+	// ------ the same with int IDs ------
+	// Exporters may implement these without any conversion of the IDs into strings,
+	// and may keep the int IDs apart from the String IDs: a line shall therefore use
+	// the same kind of IDs as its nodes. The int IDs shall not be negative.
+
+	/** the same as addNode() with String ID */
+	default void addNode(final int id,
+	                     final String label, final int colorRGB,
+	                     final int x, final int y)
+	{
+		addNode(Integer.toString(id), label,colorRGB, x,y);
+	}
+
+	/** the same as addNode() with String ID */
+	default void addNode(final int id,
+	                     final String label, final int colorRGB,
+	                     final int x, final int y,
+	                     final int width, final int height)
+	{
+		addNode(Integer.toString(id), label,colorRGB, x,y, width,height);
+	}
+
+	/** the same as addStraightLine() with String IDs */
+	default void addStraightLine(final int fromId, final int toId)
+	{
+		addStraightLine(Integer.toString(fromId), Integer.toString(toId));
+	}
+
+	/** the same as addBendedLine() with String IDs */
+	default void addBendedLine(final int fromId, final int toId,
+	                           final int toX, final int toY)
+	{
+		addBendedLine(Integer.toString(fromId), Integer.toString(toId), toX,toY);
+	}
+
+	/** the same as addBendedLine() with String IDs */
+	default void addBendedLine(final int fromId, final int toId,
+	                           final int toX, final int toY, final int bendingOffsetY)
+	{
+		addBendedLine(Integer.toString(fromId), Integer.toString(toId), toX,toY, bendingOffsetY);
+	}
+
+	/** adds 'count' nodes (of default size) at once, and lines that connect them
+	    with their parents: the i-th node has ID ids[i], label labels[i], colour
+	    colours[i], is placed at [xs[i],ys[i]], and is connected with the node of
+	    ID parentIds[i] unless it is negative; the parent must come earlier in the
+	    arrays, or must have been added before; the lines are straight if the
+	    'bendingOffsetsY' is null, otherwise they are bended with the i-th offset;
+	    the arrays may be longer than the 'count' */
+	default void addNodesAndLines(final int count,
+	                              final int[] ids, final String[] labels, final int[] colours,
+	                              final int[] xs, final int[] ys,
+	                              final int[] parentIds, final int[] bendingOffsetsY)
+	{
+		for (int i = 0; i < count; ++i)
+			addNode(ids[i], labels[i],colours[i], xs[i],ys[i]);
+		for (int i = 0; i < count; ++i) {
+			if (parentIds[i] < 0) continue;
+			if (bendingOffsetsY == null) addStraightLine(parentIds[i], ids[i]);
+			else addBendedLine(parentIds[i], ids[i], xs[i],ys[i], bendingOffsetsY[i]);
+		}
+	}
+
+	/** whether the exported content outlives this exporter, and trees of it
+	    can be individually replaced or removed later (by another exporter
+	    of the same destination), see startTree() and removeTree() */
+	default boolean supportsTreeReplacement() { return false; }
+
+	/** identifies where (and how) the trees are exported, two exporters with
+	    the same destination shall replace each other's trees; only exporters
+	    that supportsTreeReplacement() need to implement it */
+	default String getTreesDestination() { return null; }
+
+	/** the nodes and lines that follow belong to the tree of the given root,
+	    they replace the tree's previously exported content (if any) */
+	default void startTree(final int rootId, final String rootLabel) {}
+
+	/** removes the previously exported tree of the given root */
+	default void removeTree(final int rootId) {}
+
 	/** optional, whether to leave empty or implement depends on the underlying export mechanism */
 	void close();
 
@@ -0,0 +1,356 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2023, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package cz.it4i.ulman.transfers.graphexport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes the yEd's GraphML nodes and edges (as UTF-8) directly into a byte buffer.
+ * The fixed parts of the XML are pre-encoded, numbers and colours are written digit
+ * by digit, and the labels and String IDs are XML-escaped on the fly; no strings are
+ * created per node or edge.
+ *
+ * When the buffer gets full, makeSpace() is called: by default, it enlarges the buffer
+ * (to collect a chunk of the document in the memory), the file writers override it to
+ * flush the buffer into the file instead.
+ */
+class GraphMLEncoder
+{
+	ByteBuffer buffer;
+
+	GraphMLEncoder(final int initialCapacity)
+	{
+		buffer = ByteBuffer.allocate(initialCapacity);
+	}
+
+	/** makes sure the buffer has at least the given number of bytes free */
+	void makeSpace(final int bytes) throws IOException
+	{
+		final ByteBuffer larger = ByteBuffer.allocate(
+				Math.max(2 * buffer.capacity(), buffer.position() + bytes) );
+		buffer.flip();
+		larger.put(buffer);
+		buffer = larger;
+	}
+
+	void ensureSpace(final int bytes) throws IOException
+	{
+		if (buffer.remaining() < bytes) makeSpace(bytes);
+	}
+	// -----------------------------------------------------------------------------
+
+	/** writes the pre-encoded bytes */
+	void write(final byte[] bytes) throws IOException
+	{
+		ensureSpace(bytes.length);
+		buffer.put(bytes);
+	}
+
+	/** writes the string as it is (not escaped), intended for the rare (non-repeating) parts */
+	void write(final String rawText) throws IOException
+	{
+		write(rawText.getBytes(StandardCharsets.UTF_8));
+	}
+
+	void write(final char c) throws IOException
+	{
+		ensureSpace(1);
+		buffer.put((byte)c);
+	}
+
+	/** writes the decimal digits of the number */
+	void writeInt(int value) throws IOException
+	{
+		ensureSpace(11);
+		if (value < 0) {
+			if (value == Integer.MIN_VALUE) {
+				write("-2147483648");
+				return;
+			}
+			buffer.put((byte)'-');
+			value = -value;
+		}
+		//the number of digits first
+		int digits = 1;
+		for (int v = value; v >= 10; v /= 10) ++digits;
+		final int start = buffer.position();
+		for (int pos = start+digits-1; pos >= start; --pos) {
+			buffer.put(pos, (byte)('0' + value % 10));
+			value /= 10;
+		}
+		buffer.position(start+digits);
+	}
+
+	private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+	/** writes the colour in the #RRGGBB format */
+	void writeColour(final int colorRGB) throws IOException
+	{
+		ensureSpace(7);
+		buffer.put((byte)'#');
+		for (int shift = 20; shift >= 0; shift -= 4)
+			buffer.put(HEX_DIGITS[(colorRGB >> shift) & 0xF]);
+	}
+
+	/** writes the text XML-escaped and UTF-8 encoded */
+	void writeEscaped(final String text) throws IOException
+	{
+		final int len = text.length();
+		for (int i = 0; i < len; ++i) {
+			final char c = text.charAt(i);
+			ensureSpace(6);
+			switch (c) {
+			case '&': buffer.put(AMP); break;
+			case '<': buffer.put(LT); break;
+			case '>': buffer.put(GT); break;
+			case '"': buffer.put(QUOT); break;
+			case '\'': buffer.put(APOS); break;
+			default:
+				if (c < 0x80) {
+					//NB: control characters are not allowed in XML 1.0, except for tab, LF and CR
+					buffer.put(c < 0x20 && c != '\t' && c != '\n' && c != '\r' ? (byte)' ' : (byte)c);
+				} else if (c < 0x800) {
+					buffer.put((byte)(0xC0 | (c >> 6)));
+					buffer.put((byte)(0x80 | (c & 0x3F)));
+				} else if (Character.isHighSurrogate(c) && i+1 < len && Character.isLowSurrogate(text.charAt(i+1))) {
+					final int cp = Character.toCodePoint(c, text.charAt(++i));
+					buffer.put((byte)(0xF0 | (cp >> 18)));
+					buffer.put((byte)(0x80 | ((cp >> 12) & 0x3F)));
+					buffer.put((byte)(0x80 | ((cp >> 6) & 0x3F)));
+					buffer.put((byte)(0x80 | (cp & 0x3F)));
+				} else if (Character.isSurrogate(c)) {
+					buffer.put((byte)'?'); //unpaired surrogate
+				} else {
+					buffer.put((byte)(0xE0 | (c >> 12)));
+					buffer.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+					buffer.put((byte)(0x80 | (c & 0x3F)));
+				}
+			}
+		}
+	}
+
+	private static byte[] ascii(final String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static final byte[] AMP = ascii("&amp;");
+	private static final byte[] LT = ascii("&lt;");
+	private static final byte[] GT = ascii("&gt;");
+	private static final byte[] QUOT = ascii("&quot;");
+	private static final byte[] APOS = ascii("&apos;");
+
+	private static final byte[] NODE_START = ascii("    <node id=\"");
+	private static final byte[] NODE_GEOMETRY = ascii("\">\n"
+			+ "      <data key=\"d6\">\n"
+			+ "        <y:ShapeNode>\n"
+			+ "          <y:Geometry height=\"");
+	private static final byte[] NODE_WIDTH = ascii("\" width=\"");
+	private static final byte[] NODE_X = ascii("\" x=\"");
+	private static final byte[] NODE_Y = ascii("\" y=\"");
+	private static final byte[] NODE_FILL = ascii("\"/>\n"
+			+ "          <y:Fill color=\"");
+	private static final byte[] NODE_LABEL = ascii("\" transparent=\"false\"/>\n"
+			+ "          <y:BorderStyle color=\"#000000\" raised=\"false\" type=\"line\" width=\"1.0\"/>\n"
+			+ "          <y:NodeLabel alignment=\"center\" autoSizePolicy=\"content\" fontFamily=\"Dialog\" fontSize=\"12\" fontStyle=\"plain\" hasBackgroundColor=\"false\" hasLineColor=\"false\" horizontalTextPosition=\"center\" iconTextGap=\"4\" modelName=\"custom\" textColor=\"#000000\" verticalTextPosition=\"bottom\" visible=\"true\">");
+	private static final byte[] NODE_END = ascii("</y:NodeLabel>\n"
+			+ "          <y:Shape type=\"ellipse\"/>\n"
+			+ "        </y:ShapeNode>\n"
+			+ "      </data>\n"
+			+ "    </node>\n");
+
+	private static final byte[] EDGE_START = ascii("    <edge id=\"");
+	private static final byte[] EDGE_SOURCE = ascii("\" source=\"");
+	private static final byte[] EDGE_TARGET = ascii("\" target=\"");
+	private static final byte[] EDGE_DATA = ascii("\">\n"
+			+ "      <data key=\"d10\">\n"
+			+ "        <y:PolyLineEdge>\n");
+	private static final byte[] EDGE_STRAIGHT_PATH = ascii(
+			  "          <y:Path sx=\"0.0\" sy=\"0.0\" tx=\"0.0\" ty=\"0.0\"/>\n");
+	private static final byte[] EDGE_BENDED_PATH_X = ascii(
+			  "          <y:Path sx=\"0.0\" sy=\"0.0\" tx=\"0.0\" ty=\"0.0\"><y:Point x=\"");
+	private static final byte[] EDGE_BENDED_PATH_Y = ascii("\" y=\"");
+	private static final byte[] EDGE_BENDED_PATH_END = ascii("\"/></y:Path>\n");
+	private static final byte[] EDGE_END = ascii(
+			  "          <y:LineStyle color=\"#000000\" type=\"line\" width=\"1.0\"/>\n"
+			+ "          <y:Arrows source=\"none\" target=\"none\"/>\n"
+			+ "          <y:BendStyle smoothed=\"false\"/>\n"
+			+ "        </y:PolyLineEdge>\n"
+			+ "      </data>\n"
+			+ "    </edge>\n");
+	// -----------------------------------------------------------------------------
+
+	void writeNode(final String id,
+	               final String label, final int colorRGB,
+	               final int x, final int y,
+	               final int width, final int height)
+	throws IOException
+	{
+		write(NODE_START);
+		writeEscaped(id);
+		writeNodeData(label,colorRGB, x,y, width,height);
+	}
+
+	void writeNode(final int id,
+	               final String label, final int colorRGB,
+	               final int x, final int y,
+	               final int width, final int height)
+	throws IOException
+	{
+		write(NODE_START);
+		writeInt(id);
+		writeNodeData(label,colorRGB, x,y, width,height);
+	}
+
+	/** writes the rest of the node (after its ID) */
+	private void writeNodeData(final String label, final int colorRGB,
+	                           final int x, final int y,
+	                           final int width, final int height)
+	throws IOException
+	{
+		write(NODE_GEOMETRY);
+		writeInt(height);
+		write(NODE_WIDTH);
+		writeInt(width);
+		write(NODE_X);
+		writeInt(x);
+		write(NODE_Y);
+		writeInt(y);
+		write(NODE_FILL);
+		writeColour(colorRGB);
+		write(NODE_LABEL);
+		writeEscaped(label);
+		write(NODE_END);
+	}
+	// -----------------------------------------------------------------------------
+
+	/** straight edge */
+	void writeEdge(final String id,
+	               final String fromId, final String toId)
+	throws IOException
+	{
+		writeEdgeStart(id, fromId, toId);
+		write(EDGE_STRAIGHT_PATH);
+		write(EDGE_END);
+	}
+
+	/** edge bending around the point [bx,by] */
+	void writeEdge(final String id,
+	               final String fromId, final String toId,
+	               final int bx, final int by)
+	throws IOException
+	{
+		writeEdgeStart(id, fromId, toId);
+		writeBendedPath(bx,by);
+		write(EDGE_END);
+	}
+
+	/** straight edge between the nodes with int IDs */
+	void writeEdge(final int fromId, final int toId)
+	throws IOException
+	{
+		writeEdgeStart(fromId, toId);
+		write(EDGE_STRAIGHT_PATH);
+		write(EDGE_END);
+	}
+
+	/** edge bending around the point [bx,by] between the nodes with int IDs */
+	void writeEdge(final int fromId, final int toId,
+	               final int bx, final int by)
+	throws IOException
+	{
+		writeEdgeStart(fromId, toId);
+		writeBendedPath(bx,by);
+		write(EDGE_END);
+	}
+
+	private void writeEdgeStart(final String id, final String fromId, final String toId)
+	throws IOException
+	{
+		write(EDGE_START);
+		writeEscaped(id);
+		write(EDGE_SOURCE);
+		writeEscaped(fromId);
+		write(EDGE_TARGET);
+		writeEscaped(toId);
+		write(EDGE_DATA);
+	}
+
+	/** the edge ID is made of the node IDs separated with an underscore */
+	private void writeEdgeStart(final int fromId, final int toId)
+	throws IOException
+	{
+		write(EDGE_START);
+		writeInt(fromId);
+		write('_');
+		writeInt(toId);
+		write(EDGE_SOURCE);
+		writeInt(fromId);
+		write(EDGE_TARGET);
+		writeInt(toId);
+		write(EDGE_DATA);
+	}
+
+	private void writeBendedPath(final int bx, final int by)
+	throws IOException
+	{
+		write(EDGE_BENDED_PATH_X);
+		writeInt(bx);
+		write(EDGE_BENDED_PATH_Y);
+		writeInt(by);
+		write(EDGE_BENDED_PATH_END);
+	}
+	// -----------------------------------------------------------------------------
+
+	/** writes the nodes [from,till) of the arrays given to GraphExportable.addNodesAndLines() */
+	void writeNodes(final int from, final int till,
+	                final int[] ids, final String[] labels, final int[] colours,
+	                final int[] xs, final int[] ys,
+	                final int width, final int height)
+	throws IOException
+	{
+		for (int i = from; i < till; ++i)
+			writeNode(ids[i], labels[i],colours[i], xs[i],ys[i], width,height);
+	}
+
+	/** writes the edges of the nodes [from,till) of the arrays given to GraphExportable.addNodesAndLines(),
+	    the bending points are at [x + width/2, y + bendingOffsetY] */
+	void writeEdges(final int from, final int till,
+	                final int[] ids, final int[] xs, final int[] ys,
+	                final int[] parentIds, final int[] bendingOffsetsY,
+	                final int width)
+	throws IOException
+	{
+		for (int i = from; i < till; ++i) {
+			if (parentIds[i] < 0) continue;
+			if (bendingOffsetsY == null) writeEdge(parentIds[i], ids[i]);
+			else writeEdge(parentIds[i], ids[i], xs[i]+width/2, ys[i]+bendingOffsetsY[i]);
+		}
+	}
+}
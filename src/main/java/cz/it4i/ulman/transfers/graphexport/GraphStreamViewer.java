@@ -27,24 +27,141 @@
  */
 package cz.it4i.ulman.transfers.graphexport;
 
+import gnu.trove.map.hash.TIntObjectHashMap;
 import org.graphstream.graph.Graph;
 import org.graphstream.graph.Node;
 import org.graphstream.graph.implementations.DefaultGraph;
+import org.graphstream.graph.implementations.SingleGraph;
+import org.graphstream.ui.geom.Point3;
+import org.graphstream.ui.view.Camera;
 import org.graphstream.ui.view.Viewer;
 
+import javax.swing.Timer;
+import java.awt.Component;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
 public class GraphStreamViewer extends AbstractGraphExporter implements GraphExportable
 {
 	// -----------------------------------------------------------------------------
 	private final Graph graph;
 
+	/** in the bulk loading mode, the window opens only after close() when the whole
+	 *  graph is built (and not redrawn with every added node), and the nodes refer to
+	 *  (per colour) classes of one shared stylesheet instead of having own styles */
+	private final boolean bulkLoading;
+	private Viewer viewer = null;
+
+	/** non-null in the level of detail mode, that implies the bulk loading mode */
+	private final LineageLevelOfDetail levelOfDetail;
+
 	public GraphStreamViewer(final String windowTitle)
 	{
-		graph = new DefaultGraph(windowTitle);
-		graph.display( false ).setCloseFramePolicy(Viewer.CloseFramePolicy.CLOSE_VIEWER);
+		this(windowTitle, false, 1000);
+	}
+
+	/** the 'expectedNoOfNodes' is a hint to allocate the graph to its expected size */
+	public GraphStreamViewer(final String windowTitle, final boolean bulkLoading, final int expectedNoOfNodes)
+	{
+		this(windowTitle, bulkLoading, expectedNoOfNodes, 0);
+	}
+
+	/** with positive 'lodThresholdPx', the lineages given with int IDs are displayed
+	 *  with the level of detail: subtrees narrower than this number of pixels are
+	 *  shown collapsed, and expand when zoomed in, see LineageLevelOfDetail */
+	public GraphStreamViewer(final String windowTitle, final boolean bulkLoading, final int expectedNoOfNodes,
+	                         final int lodThresholdPx)
+	{
+		this.bulkLoading = bulkLoading || lodThresholdPx > 0;
+		levelOfDetail = lodThresholdPx > 0 ? new LineageLevelOfDetail(this, lodThresholdPx, expectedNoOfNodes) : null;
+		intIdNodes = new TIntObjectHashMap<>(Math.max(expectedNoOfNodes, 10));
+		if (this.bulkLoading) {
+			//room for the nodes and the "benders" of their lines
+			final int capacity = 2*expectedNoOfNodes + 16;
+			graph = new SingleGraph(windowTitle, false, true, capacity, capacity);
+		} else {
+			graph = new DefaultGraph(windowTitle);
+			display();
+		}
+	}
+
+	private void display()
+	{
+		viewer = graph.display( false );
+		viewer.setCloseFramePolicy(Viewer.CloseFramePolicy.CLOSE_VIEWER);
 	}
 
+	/** in the bulk loading mode, it opens the window with the graph */
 	@Override
-	public void close() {}
+	public void close()
+	{
+		if (viewer != null) return;
+		if (levelOfDetail != null) levelOfDetail.finishLoading();
+		graph.addAttribute( "ui.stylesheet", createStylesheet() );
+		display();
+		if (levelOfDetail != null) followZoom();
+	}
+
+	/** periodically checks the view, and updates the level of detail when zoomed or moved */
+	private void followZoom()
+	{
+		final Timer timer = new Timer(300, null);
+		timer.addActionListener( new ActionListener() {
+			double lastRatio = 0, lastCenterX = 0;
+			boolean wasShowing = false;
+
+			@Override
+			public void actionPerformed(final ActionEvent e) {
+				final Component panel = (Component)viewer.getDefaultView();
+				if (panel == null || !panel.isShowing()) {
+					//stop when the window is closed (but not before it opens)
+					if (wasShowing) timer.stop();
+					return;
+				}
+				wasShowing = true;
+
+				final Camera camera = viewer.getDefaultView().getCamera();
+				final double ratio = camera.getMetrics().ratioPx2Gu;
+				final Point3 center = camera.getViewCenter();
+				if (ratio <= 0 || (ratio == lastRatio && center.x == lastCenterX)) return;
+				lastRatio = ratio;
+				lastCenterX = center.x;
+
+				final double halfWidth = 0.5 * panel.getWidth() / ratio;
+				levelOfDetail.update(ratio, center.x - halfWidth, center.x + halfWidth);
+			}
+		} );
+		timer.start();
+	}
+	// -----------------------------------------------------------------------------
+
+	/** the colours used in the bulk loading mode, and names of their stylesheet classes */
+	private final TIntObjectHashMap<String> colourClasses = new TIntObjectHashMap<>(100);
+
+	private String getColourClass(final int colorRGB)
+	{
+		String c = colourClasses.get(colorRGB & 0xFFFFFF);
+		if (c == null) {
+			c = String.format( "c%06X", colorRGB & 0xFFFFFF );
+			colourClasses.put(colorRGB & 0xFFFFFF, c);
+		}
+		return c;
+	}
+
+	private String createStylesheet()
+	{
+		final StringBuilder css = new StringBuilder(100 + 40*colourClasses.size());
+		css.append("node { size: ").append(defaultNodeWidth).append(',').append(defaultNodeHeight)
+				.append("; stroke-mode: plain; stroke-color: #000000;")
+				.append(" text-alignment: center; text-offset: ").append(-defaultNodeWidth).append(",0; }\n");
+		colourClasses.forEachEntry( (colorRGB,c) -> {
+			css.append("node.").append(c)
+					.append(" { fill-color: #").append(c, 1, 7).append("; }\n");
+			return true;
+		} );
+		css.append("node.collapsed { shape: box; stroke-width: 2px; }\n");
+		return css.toString();
+	}
 	// -----------------------------------------------------------------------------
 
 	private final int yAxisStretchFactor = 3;
@@ -63,8 +180,57 @@ public class GraphStreamViewer extends AbstractGraphExporter implements GraphExp
 	             final int x, final int y,
 	             final int width, final int height)
 	{
-		final Node n = graph.addNode( id );
+		setupNode( graph.addNode(id), label,colorRGB, x,y, width,height );
+	}
+
+	/** the nodes added with int IDs, to connect them without looking them up by their (String) IDs */
+	private final TIntObjectHashMap<Node> intIdNodes;
+
+	@Override
+	public void addNode(final int id,
+	             final String label, final int colorRGB,
+	             final int x, final int y)
+	{
+		addNode(id, label,colorRGB, x,y, defaultNodeWidth,defaultNodeHeight);
+	}
+
+	@Override
+	public void addNode(final int id,
+	             final String label, final int colorRGB,
+	             final int x, final int y,
+	             final int width, final int height)
+	{
+		if (levelOfDetail != null) {
+			levelOfDetail.addNode(id, label,colorRGB, x,y, width,height);
+			getColourClass(colorRGB); //to have it in the stylesheet
+		}
+		else displayNode(id, label,colorRGB, x,y, width,height);
+	}
+
+	void displayNode(final int id,
+	             final String label, final int colorRGB,
+	             final int x, final int y,
+	             final int width, final int height)
+	{
+		final Node n = graph.addNode( Integer.toString(id) );
+		intIdNodes.put(id, n);
+		setupNode( n, label,colorRGB, x,y, width,height );
+	}
+
+	private void setupNode(final Node n,
+	             final String label, final int colorRGB,
+	             final int x, final int y,
+	             final int width, final int height)
+	{
 		n.addAttribute( "xyz", x,-y *yAxisStretchFactor,0 );
+		if (bulkLoading) {
+			n.addAttribute( "ui.class", getColourClass(colorRGB) );
+			if (width != defaultNodeWidth || height != defaultNodeHeight)
+				n.addAttribute( "ui.style", "size: "+width+","+height+"; text-offset: "+(-width)+",0;" );
+			n.addAttribute( "ui.label", label );
+			return;
+		}
+
 		n.addAttribute( "ui.style", "size: "+width+","+height+";" );
 		n.addAttribute( "ui.style", "stroke-mode: plain; stroke-color: #000000;" );
 		n.addAttribute( "ui.style", "fill-color: rgb("
@@ -76,6 +242,27 @@ public class GraphStreamViewer extends AbstractGraphExporter implements GraphExp
 		n.addAttribute( "ui.style", "text-offset: "+(-width)+",0;" );
 		n.addAttribute( "ui.label", label );
 	}
+
+	/** a placeholder of the (collapsed) subtree of the given number of nodes
+	 *  looks different, 'hiddenNodes' = 0 restores the normal look */
+	void setPlaceholderLook(final int id, final String label, final int colorRGB, final int hiddenNodes)
+	{
+		final Node n = intIdNodes.get(id);
+		if (hiddenNodes > 0) {
+			n.addAttribute( "ui.class", getColourClass(colorRGB)+", collapsed" );
+			n.addAttribute( "ui.label", label+" (+"+hiddenNodes+")" );
+		} else {
+			n.addAttribute( "ui.class", getColourClass(colorRGB) );
+			n.addAttribute( "ui.label", label );
+		}
+	}
+
+	/** removes the node (with int ID) together with its lines */
+	void removeDisplayedNode(final int id)
+	{
+		graph.removeNode( intIdNodes.remove(id) );
+		if (graph.getNode( id+"_hidden" ) != null) graph.removeNode( id+"_hidden" );
+	}
 	// -----------------------------------------------------------------------------
 
 	@Override
@@ -84,6 +271,18 @@ public class GraphStreamViewer extends AbstractGraphExporter implements GraphExp
 		graph.addEdge(fromId.concat(toId), fromId, toId);
 	}
 
+	@Override
+	public void addStraightLine(final int fromId, final int toId)
+	{
+		if (levelOfDetail != null) levelOfDetail.addLine(fromId, toId, LineageLevelOfDetail.STRAIGHT);
+		else displayStraightLine(fromId, toId);
+	}
+
+	private void displayStraightLine(final int fromId, final int toId)
+	{
+		graph.addEdge(fromId+"_"+toId, intIdNodes.get(fromId), intIdNodes.get(toId));
+	}
+
 	@Override
 	public void addStraightLineConnectedVertex(final String parentNodeID,
 	                                           final String newNodeID,
@@ -116,6 +315,41 @@ public class GraphStreamViewer extends AbstractGraphExporter implements GraphExp
 		graph.addEdge( benderNodeID.concat( toId ),   benderNodeID, toId );
 	}
 
+	@Override
+	public void addBendedLine(final int fromId, final int toId,
+	                          final int toX, final int toY)
+	{
+		addBendedLine(fromId,toId, toX,toY, defaultBendingPointAbsoluteOffsetY);
+	}
+
+	@Override
+	public void addBendedLine(final int fromId, final int toId,
+	                          final int toX, final int toY, final int bendingOffsetY)
+	{
+		if (levelOfDetail != null) levelOfDetail.addLine(fromId, toId, bendingOffsetY);
+		else displayBendedLine(fromId, toId, toX,toY, bendingOffsetY);
+	}
+
+	/** the straight line if 'bendingOffsetY' is LineageLevelOfDetail.STRAIGHT, otherwise the bended line */
+	void displayLine(final int fromId, final int toId,
+	                 final int toX, final int toY, final int bendingOffsetY)
+	{
+		if (bendingOffsetY == LineageLevelOfDetail.STRAIGHT) displayStraightLine(fromId, toId);
+		else displayBendedLine(fromId, toId, toX,toY, bendingOffsetY);
+	}
+
+	private void displayBendedLine(final int fromId, final int toId,
+	                               final int toX, final int toY, final int bendingOffsetY)
+	{
+		//the hidden node -- the "bender"
+		final Node n = graph.addNode( toId+"_hidden" );
+		n.addAttribute( "xyz", toX,(-toY-bendingOffsetY) *yAxisStretchFactor,0 );
+		n.addAttribute( "ui.hide" );
+
+		graph.addEdge( fromId+"_"+toId+"_hidden", intIdNodes.get(fromId), n );
+		graph.addEdge( toId+"_hidden_"+toId,      n, intIdNodes.get(toId) );
+	}
+
 	@Override
 	public void addBendedLineConnectedVertex(final String parentNodeID,
 														  final String newNodeID,
@@ -127,6 +361,48 @@ public class GraphStreamViewer extends AbstractGraphExporter implements GraphExp
 	}
 	// -----------------------------------------------------------------------------
 
+	/** adds all nodes, each with only one (combined) style attribute
+	 *  to lower the number of events sent to the viewer (or with only
+	 *  the class in the bulk loading mode), and then all lines */
+	@Override
+	public void addNodesAndLines(final int count,
+	                             final int[] ids, final String[] labels, final int[] colours,
+	                             final int[] xs, final int[] ys,
+	                             final int[] parentIds, final int[] bendingOffsetsY)
+	{
+		if (bulkLoading) {
+			for (int i = 0; i < count; ++i)
+				addNode(ids[i], labels[i],colours[i], xs[i],ys[i], defaultNodeWidth,defaultNodeHeight);
+			for (int i = 0; i < count; ++i) {
+				if (parentIds[i] < 0) continue;
+				if (bendingOffsetsY == null) addStraightLine(parentIds[i], ids[i]);
+				else addBendedLine(parentIds[i], ids[i], xs[i],ys[i], bendingOffsetsY[i]);
+			}
+			return;
+		}
+
+		final String sizeStyle = "size: "+defaultNodeWidth+","+defaultNodeHeight+";"
+				+ " stroke-mode: plain; stroke-color: #000000;"
+				+ " text-alignment: center; text-offset: "+(-defaultNodeWidth)+",0;";
+		for (int i = 0; i < count; ++i) {
+			final Node n = graph.addNode( Integer.toString(ids[i]) );
+			intIdNodes.put(ids[i], n);
+			n.addAttribute( "xyz", xs[i],-ys[i] *yAxisStretchFactor,0 );
+			final int colorRGB = colours[i];
+			n.addAttribute( "ui.style", sizeStyle + " fill-color: rgb("
+			                                 +((colorRGB>>16)&0xFF)+","
+			                                 +((colorRGB>> 8)&0xFF)+","
+			                                 +((colorRGB    )&0xFF)+");" );
+			n.addAttribute( "ui.label", labels[i] );
+		}
+		for (int i = 0; i < count; ++i) {
+			if (parentIds[i] < 0) continue;
+			if (bendingOffsetsY == null) addStraightLine(parentIds[i], ids[i]);
+			else addBendedLine(parentIds[i], ids[i], xs[i],ys[i], bendingOffsetsY[i]);
+		}
+	}
+	// -----------------------------------------------------------------------------
+
 	public void runExample()
 	{
 		System.out.println("gsApp started");
@@ -0,0 +1,371 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2023, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package cz.it4i.ulman.transfers.graphexport;
+
+import cz.it4i.ulman.transfers.graphexport.leftrightness.DescendantsSorter;
+import gnu.trove.list.array.TIntArrayList;
+import org.mastodon.collection.RefList;
+import org.mastodon.collection.ref.RefArrayList;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.scijava.log.Logger;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * Lays out a lineage tree with the generations (divisions) on the vertical axis:
+ * every "string" of spots between two branching points becomes one node that is
+ * placed at the level of its generation, leaves take one column each, and a parent
+ * is placed horizontally in the middle of its first and last daughter.
+ *
+ * The tree is traversed without recursion: the branching points are found with an
+ * explicit stack, using the same few spot references for the whole tree, and the
+ * layout is computed into primitive arrays (see {@link Layout}) in two linear passes.
+ * The result can be exported into any {@link GraphExportable} afterwards.
+ *
+ * This class is not thread-safe, use one engine per thread.
+ */
+public class LineageLayoutEngine {
+	public LineageLayoutEngine(final ModelGraph modelGraph,
+	                           final DescendantsSorter sorterOfDaughters,
+	                           final Predicate<Spot> isEligible)
+	{
+		this.modelGraph = modelGraph;
+		this.sorterOfDaughters = sorterOfDaughters;
+		this.isEligible = isEligible;
+
+		spot = modelGraph.vertices().createRef();
+		fRef = modelGraph.vertices().createRef();
+		tRef = modelGraph.vertices().createRef();
+		lRef = modelGraph.edgeRef();
+		daughterList = new RefArrayList<>(modelGraph.vertices().getRefPool(),3);
+	}
+
+	final ModelGraph modelGraph;
+	final DescendantsSorter sorterOfDaughters;
+	final Predicate<Spot> isEligible;
+
+	private final Spot spot; //aux spot reference
+	private final Spot fRef; //spot's ancestor buddy (forward)
+	private final Spot tRef; //tmp reference on spot
+	private final Link lRef; //link reference
+	private final RefList<Spot> daughterList;
+
+	private final TIntArrayList toBeExpanded = new TIntArrayList(100);
+
+	/** if set, the discovered nodes and the sorting of daughters is reported into it */
+	public Logger debugLogger = null;
+
+	/** releases the spot references, the engine must not be used afterwards */
+	public void release()
+	{
+		modelGraph.vertices().releaseRef(spot);
+		modelGraph.vertices().releaseRef(fRef);
+		modelGraph.vertices().releaseRef(tRef);
+		modelGraph.releaseRef(lRef);
+	}
+
+	/**
+	 * The layout of one tree. The tree nodes are indexed from 0 (the root), and
+	 * daughters of every node have consecutive indices, all larger than the index
+	 * of their mother. The x coordinates are relative to the left bound of the tree.
+	 */
+	public static class Layout {
+		final TIntArrayList poolIndex  = new TIntArrayList(100);
+		final TIntArrayList generation = new TIntArrayList(100);
+		final TIntArrayList mother     = new TIntArrayList(100);
+		final TIntArrayList firstChild = new TIntArrayList(100);
+		final TIntArrayList noOfChildren = new TIntArrayList(100);
+		final TIntArrayList width      = new TIntArrayList(100);
+		final TIntArrayList leftBound  = new TIntArrayList(100);
+		final TIntArrayList x          = new TIntArrayList(100);
+
+		int addNode(final int spotPoolIndex, final int nodeGeneration, final int motherNode) {
+			poolIndex.add(spotPoolIndex);
+			generation.add(nodeGeneration);
+			mother.add(motherNode);
+			firstChild.add(-1);
+			noOfChildren.add(0);
+			width.add(0);
+			leftBound.add(0);
+			x.add(0);
+			return poolIndex.size()-1;
+		}
+
+		/**
+		 * Creates a (not yet computed) tree from its root and already discovered
+		 * subtrees of the root's daughters: the i-th subtree must start with
+		 * the i-th daughter. The subtrees' generations are kept.
+		 */
+		public static Layout graft(final int rootPoolIndex, final int rootGeneration,
+		                           final Layout[] daughtersSubtrees)
+		{
+			final Layout l = new Layout();
+			l.addNode(rootPoolIndex, rootGeneration, -1);
+			if (daughtersSubtrees.length == 0) return l;
+
+			//the daughters themselves first (to have consecutive indices)...
+			l.firstChild.setQuick(0, 1);
+			l.noOfChildren.setQuick(0, daughtersSubtrees.length);
+			for (Layout sub : daughtersSubtrees) l.addNode(sub.poolIndex.getQuick(0), sub.generation.getQuick(0), 0);
+
+			//...then the rest of the subtrees, with their indices shifted
+			for (int d = 0; d < daughtersSubtrees.length; ++d) {
+				final Layout sub = daughtersSubtrees[d];
+				final int daughterNode = 1+d;
+				final int shift = l.size()-1; //sub's node i (i > 0) becomes node i+shift
+				for (int i = 1; i < sub.size(); ++i) {
+					final int m = sub.mother.getQuick(i);
+					l.addNode(sub.poolIndex.getQuick(i), sub.generation.getQuick(i), m == 0 ? daughterNode : m+shift);
+				}
+				for (int i = 0; i < sub.size(); ++i) {
+					final int cnt = sub.noOfChildren.getQuick(i);
+					if (cnt == 0) continue;
+					final int node = i == 0 ? daughterNode : i+shift;
+					l.firstChild.setQuick(node, sub.firstChild.getQuick(i)+shift);
+					l.noOfChildren.setQuick(node, cnt);
+				}
+			}
+			return l;
+		}
+
+		public int size() { return poolIndex.size(); }
+		public int getPoolIndex(final int node) { return poolIndex.getQuick(node); }
+		public int getGeneration(final int node) { return generation.getQuick(node); }
+		/** returns -1 for the root */
+		public int getMother(final int node) { return mother.getQuick(node); }
+		public int getX(final int node) { return x.getQuick(node); }
+		/** the width of the whole tree */
+		public int getWidth() { return width.getQuick(0); }
+
+		/** reads the labels of the tree's nodes (in the order of their indices),
+		 *  which is all that the export needs from the graph */
+		public String[] readLabels(final ModelGraph modelGraph)
+		{
+			final String[] labels = new String[size()];
+			final Spot sRef = modelGraph.vertices().createRef();
+			for (int n = 0; n < labels.length; ++n)
+				labels[n] = modelGraph.vertices().getRefPool().getObject(poolIndex.getQuick(n), sRef).getLabel();
+			modelGraph.vertices().releaseRef(sRef);
+			return labels;
+		}
+
+		/**
+		 * Sends the nodes (in the order of their indices) and their connecting
+		 * lines into the given exporter, all in one (bulk) call, shifted horizontally
+		 * with the 'xOffset'. The node IDs are the pool indices of their spots (the int IDs).
+		 */
+		public void exportTo(final GraphExportable ge, final int xOffset,
+		                     final ModelGraph modelGraph, final boolean doStraightLines)
+		{
+			exportTo(ge, xOffset, readLabels(modelGraph), doStraightLines);
+		}
+
+		/** the same as above, but with the labels read before (with readLabels()),
+		 *  so that the graph is not accessed at all */
+		public void exportTo(final GraphExportable ge, final int xOffset,
+		                     final String[] labels, final boolean doStraightLines)
+		{
+			final int size = size();
+			final int[] ids = poolIndex.toArray();
+			final int[] colours = new int[size];
+			final int[] xs = new int[size];
+			final int[] ys = new int[size];
+			final int[] parentIds = new int[size];
+			final int[] bendingOffsets = doStraightLines ? null : new int[size];
+
+			final int yStep = ge.get_yLineStep();
+			Arrays.fill(colours, ge.get_defaultNodeColour());
+			if (bendingOffsets != null) Arrays.fill(bendingOffsets, ge.get_defaultBendingPointAbsoluteOffsetY());
+			for (int n = 0; n < size; ++n) {
+				xs[n] = xOffset + x.getQuick(n);
+				ys[n] = yStep * generation.getQuick(n);
+				final int m = mother.getQuick(n);
+				parentIds[n] = m < 0 ? -1 : ids[m];
+			}
+
+			ge.addNodesAndLines(size, ids, labels, colours, xs, ys, parentIds, bendingOffsets);
+		}
+	}
+
+	/** computes the layout of the tree induced with the given 'root',
+	 *  the leaves are given the 'columnWidth' */
+	public Layout layout(final Spot root, final int rootGeneration, final int columnWidth)
+	{
+		final Layout l = layoutStructure(root.getInternalPoolIndex(), rootGeneration);
+		computeCoordinates(l, columnWidth);
+		return l;
+	}
+
+	/** discovers the tree induced with the given 'root' (given as its pool index),
+	 *  but doesn't compute the coordinates yet, see computeCoordinates() */
+	public Layout layoutStructure(final int rootPoolIndex, final int rootGeneration)
+	{
+		final Layout l = new Layout();
+		l.addNode(rootPoolIndex, rootGeneration, -1);
+
+		toBeExpanded.resetQuick();
+		toBeExpanded.add(0);
+		while (!toBeExpanded.isEmpty()) {
+			final int node = toBeExpanded.removeAt(toBeExpanded.size()-1);
+			findDaughtersOfNode(l.poolIndex.getQuick(node));
+
+			if (daughterList.size() > 1) {
+				l.firstChild.setQuick(node, l.size());
+				l.noOfChildren.setQuick(node, daughterList.size());
+				final int childGeneration = l.generation.getQuick(node)+1;
+				for (Spot d : daughterList) {
+					if (debugLogger != null)
+						debugLogger.info("generation: "+(childGeneration-1)+"   "
+								+l.poolIndex.getQuick(node)+" -> "+d.getInternalPoolIndex());
+					toBeExpanded.add( l.addNode(d.getInternalPoolIndex(), childGeneration, node) );
+				}
+			}
+			else if (debugLogger != null) {
+				debugLogger.info("Discovered \"leaf\" "+modelGraph.vertices().getRefPool()
+						.getObject(l.poolIndex.getQuick(node), tRef).getLabel());
+			}
+		}
+		return l;
+	}
+
+	/** returns pool indices of the (sorted) daughters of the node that
+	 *  starts with the given spot, the list is empty for a leaf */
+	public TIntArrayList findDaughters(final int nodePoolIndex)
+	{
+		findDaughtersOfNode(nodePoolIndex);
+		final TIntArrayList daughters = new TIntArrayList(daughterList.size());
+		for (Spot d : daughterList) daughters.add(d.getInternalPoolIndex());
+		return daughters;
+	}
+
+	/** computes widths and x coordinates of all nodes of the given
+	 *  (discovered) tree, the leaves are given the 'columnWidth' */
+	public static void computeCoordinates(final Layout l, final int columnWidth)
+	{
+		//widths: daughters have larger indices than their mothers -> backward pass
+		for (int n = l.size()-1; n >= 0; --n) {
+			final int cnt = l.noOfChildren.getQuick(n);
+			if (cnt == 0) {
+				l.width.setQuick(n, columnWidth);
+			} else {
+				final int first = l.firstChild.getQuick(n);
+				int w = 0;
+				for (int c = first; c < first+cnt; ++c) w += l.width.getQuick(c);
+				l.width.setQuick(n, w);
+			}
+		}
+
+		//left bounds: forward pass
+		l.leftBound.setQuick(0, 0);
+		for (int n = 0; n < l.size(); ++n) {
+			final int cnt = l.noOfChildren.getQuick(n);
+			final int first = l.firstChild.getQuick(n);
+			int left = l.leftBound.getQuick(n);
+			for (int c = first; c < first+cnt; ++c) {
+				l.leftBound.setQuick(c, left);
+				left += l.width.getQuick(c);
+			}
+		}
+
+		//x coordinates: leaves in the middle of their column, mothers in the middle of their daughters
+		for (int n = l.size()-1; n >= 0; --n) {
+			final int cnt = l.noOfChildren.getQuick(n);
+			if (cnt == 0) {
+				final int left = l.leftBound.getQuick(n);
+				l.x.setQuick(n, (left + left + columnWidth)/2);
+			} else {
+				final int first = l.firstChild.getQuick(n);
+				l.x.setQuick(n, (l.x.getQuick(first) + l.x.getQuick(first+cnt-1))/2);
+			}
+		}
+	}
+
+	/** walks along the "string" of spots that starts at the given spot until
+	 *  a branching point or a leaf is found, the (sorted) daughters of which
+	 *  are then left in the 'daughterList' (which is empty for a leaf) */
+	private void findDaughtersOfNode(final int startSpotPoolIndex)
+	{
+		modelGraph.vertices().getRefPool().getObject(startSpotPoolIndex, spot);
+		while (true)
+		{
+			//shortcut to the time of the current node/spot
+			final int time = spot.getTimepoint();
+
+			//find how many forward-references (time-wise) this spot has
+			int countForwardLinks = 0;
+
+			for (int n=0; n < spot.incomingEdges().size(); ++n)
+			{
+				spot.incomingEdges().get(n, lRef).getSource( fRef );
+				if (fRef.getTimepoint() > time && isEligible.test(fRef))
+				{
+					++countForwardLinks;
+					tRef.refTo(fRef); //keep the last used valid reference
+				}
+			}
+			for (int n=0; n < spot.outgoingEdges().size(); ++n)
+			{
+				spot.outgoingEdges().get(n, lRef).getTarget( fRef );
+				if (fRef.getTimepoint() > time && isEligible.test(fRef))
+				{
+					++countForwardLinks;
+					tRef.refTo(fRef);
+				}
+			}
+
+			if (countForwardLinks == 1)
+			{
+				//just a vertex on "a string", move over it
+				spot.refTo( tRef );
+				continue;
+			}
+
+			daughterList.clear();
+			if (countForwardLinks > 1)
+			{
+				//branching point -> enumerate all descendants
+				for (int n=0; n < spot.incomingEdges().size(); ++n)
+				{
+					spot.incomingEdges().get(n, lRef).getSource( fRef );
+					if (fRef.getTimepoint() > time && isEligible.test(fRef)) daughterList.add(fRef);
+				}
+				for (int n=0; n < spot.outgoingEdges().size(); ++n)
+				{
+					spot.outgoingEdges().get(n, lRef).getTarget( fRef );
+					if (fRef.getTimepoint() > time && isEligible.test(fRef)) daughterList.add(fRef);
+				}
+				if (debugLogger != null) sorterOfDaughters.sort(daughterList,debugLogger);
+				else sorterOfDaughters.sort(daughterList);
+			}
+			return;
+		}
+	}
+}
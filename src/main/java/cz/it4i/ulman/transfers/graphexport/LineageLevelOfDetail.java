@@ -0,0 +1,256 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2023, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package cz.it4i.ulman.transfers.graphexport;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * Level of detail for the GraphStreamViewer: it keeps all nodes and lines given
+ * with int IDs (that shall form a forest of lineages, only the first line to a
+ * node is considered), and lets the viewer display only as much of them as is
+ * legible at the current zoom. A node whose subtree is narrower (in pixels) than
+ * the threshold is displayed as a placeholder without its subtree, and chains of
+ * nodes with only one daughter are displayed as one line.
+ *
+ * The update() expands the displayed placeholders, that are in the view, when
+ * zoomed in enough, and collapses the subtrees again when zoomed out.
+ */
+class LineageLevelOfDetail
+{
+	/** the bending offset of straight lines */
+	static final int STRAIGHT = Integer.MIN_VALUE;
+
+	/** the expected width of the viewer window, before it opens */
+	static final int INITIAL_VIEW_WIDTH = 800;
+
+	private final GraphStreamViewer viewer;
+	private final int thresholdPx;
+
+	LineageLevelOfDetail(final GraphStreamViewer viewer, final int thresholdPx, final int expectedNoOfNodes)
+	{
+		this.viewer = viewer;
+		this.thresholdPx = thresholdPx;
+
+		final int capacity = Math.max(expectedNoOfNodes, 10);
+		idToIndex = new TIntIntHashMap(capacity, 0.5f, -1, -1);
+		ids = new TIntArrayList(capacity);
+		labels = new ArrayList<>(capacity);
+		colours = new TIntArrayList(capacity);
+		xs = new TIntArrayList(capacity);
+		ys = new TIntArrayList(capacity);
+		widths = new TIntArrayList(capacity);
+		heights = new TIntArrayList(capacity);
+		parents = new TIntArrayList(capacity);
+		bendings = new TIntArrayList(capacity);
+		firstChild = new TIntArrayList(capacity);
+		nextSibling = new TIntArrayList(capacity);
+		noOfChildren = new TIntArrayList(capacity);
+	}
+
+	// ------ the nodes, indexed in the order of their addition ------
+	private final TIntIntHashMap idToIndex;
+	private final TIntArrayList ids;
+	private final ArrayList<String> labels;
+	private final TIntArrayList colours, xs, ys, widths, heights;
+
+	/** index of the parent node, or -1 */
+	private final TIntArrayList parents;
+	/** the bending offset of the line from the parent, or STRAIGHT */
+	private final TIntArrayList bendings;
+	/** indices of the children, or -1 */
+	private final TIntArrayList firstChild, nextSibling;
+	private final TIntArrayList noOfChildren;
+
+	void addNode(final int id,
+	             final String label, final int colorRGB,
+	             final int x, final int y,
+	             final int width, final int height)
+	{
+		idToIndex.put(id, ids.size());
+		ids.add(id);
+		labels.add(label);
+		colours.add(colorRGB);
+		xs.add(x);
+		ys.add(y);
+		widths.add(width);
+		heights.add(height);
+		parents.add(-1);
+		bendings.add(STRAIGHT);
+		firstChild.add(-1);
+		nextSibling.add(-1);
+		noOfChildren.add(0);
+	}
+
+	void addLine(final int fromId, final int toId, final int bendingOffset)
+	{
+		final int p = idToIndex.get(fromId);
+		final int c = idToIndex.get(toId);
+		if (p < 0 || c < 0 || parents.getQuick(c) >= 0) return;
+
+		parents.setQuick(c, p);
+		bendings.setQuick(c, bendingOffset);
+		nextSibling.setQuick(c, firstChild.getQuick(p));
+		firstChild.setQuick(p, c);
+		noOfChildren.setQuick(p, noOfChildren.getQuick(p)+1);
+	}
+	// -----------------------------------------------------------------------------
+
+	/** the horizontal span of the subtrees' node centres, in graph units */
+	private int[] minX, maxX;
+	/** the widest node of the subtrees, in pixels (as the node sizes are given) */
+	private int[] maxWidthPx;
+	/** the number of descendants */
+	private int[] subtreeSize;
+	private final TIntArrayList roots = new TIntArrayList();
+
+	private final BitSet expanded = new BitSet();
+
+	/** to be called once all nodes and lines are added, it displays the roots
+	 *  and as much of their trees as is legible in the (estimated) initial view */
+	void finishLoading()
+	{
+		final int size = ids.size();
+		minX = new int[size];
+		maxX = new int[size];
+		maxWidthPx = new int[size];
+		subtreeSize = new int[size];
+
+		//the parents come before their children in the 'order'
+		final TIntArrayList order = new TIntArrayList(size);
+		final TIntArrayList stack = new TIntArrayList();
+		for (int i = 0; i < size; ++i) {
+			if (parents.getQuick(i) >= 0) continue;
+			roots.add(i);
+			stack.add(i);
+			while (!stack.isEmpty()) {
+				final int n = stack.removeAt(stack.size()-1);
+				order.add(n);
+				for (int c = firstChild.getQuick(n); c >= 0; c = nextSibling.getQuick(c)) stack.add(c);
+			}
+		}
+
+		int totalMinX = Integer.MAX_VALUE, totalMaxX = Integer.MIN_VALUE, totalMaxWidthPx = 0;
+		for (int o = order.size()-1; o >= 0; --o) {
+			final int n = order.getQuick(o);
+			minX[n] = xs.getQuick(n);
+			maxX[n] = xs.getQuick(n);
+			maxWidthPx[n] = widths.getQuick(n);
+			for (int c = firstChild.getQuick(n); c >= 0; c = nextSibling.getQuick(c)) {
+				minX[n] = Math.min(minX[n], minX[c]);
+				maxX[n] = Math.max(maxX[n], maxX[c]);
+				maxWidthPx[n] = Math.max(maxWidthPx[n], maxWidthPx[c]);
+				subtreeSize[n] += 1 + subtreeSize[c];
+			}
+			totalMinX = Math.min(totalMinX, minX[n]);
+			totalMaxX = Math.max(totalMaxX, maxX[n]);
+			totalMaxWidthPx = Math.max(totalMaxWidthPx, maxWidthPx[n]);
+		}
+
+		for (int r = 0; r < roots.size(); ++r) show(roots.getQuick(r));
+		if (totalMaxX > totalMinX)
+			update((double)Math.max(INITIAL_VIEW_WIDTH - totalMaxWidthPx, 1) / (totalMaxX - totalMinX),
+					totalMinX, totalMaxX);
+	}
+
+	/** expands and collapses the displayed subtrees to match the current zoom
+	 *  ('ratioPx2Gu' pixels per graph unit), only the placeholders that are
+	 *  (horizontally) within [fromX,toX] are expanded */
+	void update(final double ratioPx2Gu, final double fromX, final double toX)
+	{
+		final TIntArrayList stack = new TIntArrayList(roots);
+		while (!stack.isEmpty()) {
+			final int n = stack.removeAt(stack.size()-1);
+			//the span of the centres is zoomed, the nodes keep their sizes in pixels
+			final boolean legible = noOfChildren.getQuick(n) > 0
+					&& (maxX[n] - minX[n]) * ratioPx2Gu + maxWidthPx[n] >= thresholdPx;
+			if (expanded.get(n)) {
+				if (!legible) {
+					collapse(n);
+					continue;
+				}
+			} else {
+				final double halfWidthGu = 0.5 * maxWidthPx[n] / ratioPx2Gu;
+				if (!legible || maxX[n] + halfWidthGu < fromX || minX[n] - halfWidthGu > toX) continue;
+				expand(n);
+			}
+			for (int c = firstChild.getQuick(n); c >= 0; c = nextSibling.getQuick(c)) stack.add(chainEnd(c));
+		}
+	}
+
+	/** follows the chain of the only daughters from the given node */
+	private int chainEnd(int n)
+	{
+		while (noOfChildren.getQuick(n) == 1) n = firstChild.getQuick(n);
+		return n;
+	}
+
+	/** displays the node, as a placeholder if it has (undisplayed) descendants */
+	private void show(final int n)
+	{
+		viewer.displayNode(ids.getQuick(n), labels.get(n),colours.getQuick(n),
+				xs.getQuick(n),ys.getQuick(n), widths.getQuick(n),heights.getQuick(n));
+		if (subtreeSize[n] > 0) setPlaceholderLook(n, true);
+	}
+
+	private void setPlaceholderLook(final int n, final boolean isPlaceholder)
+	{
+		viewer.setPlaceholderLook(ids.getQuick(n), labels.get(n),colours.getQuick(n),
+				isPlaceholder ? subtreeSize[n] : 0);
+	}
+
+	/** displays the children (ends of their chains) of the displayed node */
+	private void expand(final int n)
+	{
+		for (int c = firstChild.getQuick(n); c >= 0; c = nextSibling.getQuick(c)) {
+			final int d = chainEnd(c);
+			show(d);
+			viewer.displayLine(ids.getQuick(n), ids.getQuick(d), xs.getQuick(d),ys.getQuick(d), bendings.getQuick(c));
+		}
+		expanded.set(n);
+		setPlaceholderLook(n, false);
+	}
+
+	/** removes all displayed descendants of the node */
+	private void collapse(final int n)
+	{
+		final TIntArrayList stack = new TIntArrayList();
+		stack.add(n);
+		while (!stack.isEmpty()) {
+			final int m = stack.removeAt(stack.size()-1);
+			if (expanded.get(m))
+				for (int c = firstChild.getQuick(m); c >= 0; c = nextSibling.getQuick(c)) stack.add(chainEnd(c));
+			expanded.clear(m);
+			if (m != n) viewer.removeDisplayedNode(ids.getQuick(m));
+		}
+		setPlaceholderLook(n, true);
+	}
+}
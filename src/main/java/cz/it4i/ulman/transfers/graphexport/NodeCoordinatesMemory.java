@@ -0,0 +1,97 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2023, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package cz.it4i.ulman.transfers.graphexport;
+
+import gnu.trove.map.hash.TIntFloatHashMap;
+
+import java.util.Arrays;
+
+/**
+ * Remembers x,y coordinates of nodes per their int IDs, without any boxing.
+ * The non-negative IDs are expected to be dense (e.g. pool indices of spots),
+ * and they index directly into growable arrays. The negative IDs are kept
+ * in (primitive) hash maps.
+ */
+public class NodeCoordinatesMemory {
+	private float[] xs;
+	private float[] ys;
+
+	private final TIntFloatHashMap negativeIdsXs = new TIntFloatHashMap(100);
+	private final TIntFloatHashMap negativeIdsYs = new TIntFloatHashMap(100);
+
+	public NodeCoordinatesMemory() {
+		this(10000);
+	}
+
+	public NodeCoordinatesMemory(final int initialCapacity) {
+		xs = new float[Math.max(initialCapacity,16)];
+		ys = new float[xs.length];
+	}
+
+	public void set(final int id, final float x, final float y) {
+		if (id < 0) {
+			negativeIdsXs.put(id, x);
+			negativeIdsYs.put(id, y);
+			return;
+		}
+		if (id >= xs.length) grow(id);
+		xs[id] = x;
+		ys[id] = y;
+	}
+
+	/** returns 0 for an unknown node */
+	public float getX(final int id) {
+		if (id < 0) return negativeIdsXs.get(id);
+		return id < xs.length ? xs[id] : 0;
+	}
+
+	/** returns 0 for an unknown node */
+	public float getY(final int id) {
+		if (id < 0) return negativeIdsYs.get(id);
+		return id < ys.length ? ys[id] : 0;
+	}
+
+	/** grows by (at least) half of the current size to not copy too often */
+	private void grow(final int id) {
+		final int newLength = (int)Math.min(Integer.MAX_VALUE - 8,
+				Math.max((long)id + 1, xs.length + (long)(xs.length >> 1)));
+		xs = Arrays.copyOf(xs, newLength);
+		ys = Arrays.copyOf(ys, newLength);
+	}
+
+	/** how many non-negative IDs fit in without growing */
+	public int getCapacity() {
+		return xs.length;
+	}
+
+	/** estimated size (in bytes) of the stored data, the negative IDs
+	 *  are counted with 4+4 bytes per ID and coordinate as a lower bound */
+	public long getFootprintInBytes() {
+		return 2L*4*xs.length + 2L*(4+4)*negativeIdsXs.capacity();
+	}
+}
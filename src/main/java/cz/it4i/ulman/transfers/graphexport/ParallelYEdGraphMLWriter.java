@@ -0,0 +1,192 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2023, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package cz.it4i.ulman.transfers.graphexport;
+
+import org.scijava.log.LogService;
+import org.scijava.log.StderrLogService;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * The yEdGraphMLWriter that formats the nodes and edges, that come with the bulk
+ * addNodesAndLines(), in parallel: the arrays are split into chunks, each chunk
+ * is formatted (by one of the threads) into its own memory buffer, and the buffers
+ * are then written into the file in the original order, so that all nodes come
+ * before all edges (and as given in the arrays). Since the size of a formatted
+ * chunk is known, its place in the file is known too and it is written there with
+ * a positional write, again in parallel; compressed output is, however, written
+ * sequentially (from the calling thread). Only a limited number of the chunks is
+ * waiting to be written at any time, and their buffers are reused.
+ *
+ * The chunks are formatted and written on the common fork-join pool, the number
+ * of the threads only limits how many chunks are being processed at the same time.
+ *
+ * The other (non-bulk) calls are written as in the yEdGraphMLWriter.
+ */
+public class ParallelYEdGraphMLWriter extends yEdGraphMLWriter
+{
+	/** the number of nodes (or edges) formatted in one chunk */
+	static final int CHUNK_SIZE = 4096;
+
+	private final int noOfThreads;
+	private final ForkJoinPool pool = ForkJoinPool.commonPool();
+	private final ConcurrentLinkedQueue<GraphMLEncoder> spareChunks = new ConcurrentLinkedQueue<>();
+
+	public ParallelYEdGraphMLWriter(final String outputGraphMLFile)
+	{
+		this(outputGraphMLFile, new StderrLogService(), Runtime.getRuntime().availableProcessors());
+	}
+
+	public ParallelYEdGraphMLWriter(final String outputGraphMLFile, final LogService logService,
+	                                final int noOfThreads)
+	{
+		super(outputGraphMLFile, logService);
+		this.noOfThreads = Math.max(noOfThreads, 1);
+	}
+
+	@Override
+	public void addNodesAndLines(final int count,
+	                             final int[] ids, final String[] labels, final int[] colours,
+	                             final int[] xs, final int[] ys,
+	                             final int[] parentIds, final int[] bendingOffsetsY)
+	{
+		if (failed) return;
+		if (count < 2*CHUNK_SIZE) {
+			//not worth it
+			super.addNodesAndLines(count, ids,labels,colours, xs,ys, parentIds,bendingOffsetsY);
+			return;
+		}
+
+		//the first half of the chunks are the nodes, the second half are the edges
+		final int nodeChunks = (count + CHUNK_SIZE-1) / CHUNK_SIZE;
+		final int width = defaultNodeWidth;
+		final int height = defaultNodeHeight;
+
+		final int maxWaitingChunks = 2 * noOfThreads;
+		final ArrayDeque<Future<GraphMLEncoder>> formattedChunks = new ArrayDeque<>(maxWaitingChunks);
+		final ArrayDeque<Future<?>> writtenChunks = new ArrayDeque<>(maxWaitingChunks);
+		try {
+			//what's been written before goes first
+			flush();
+			int nextChunk = 0;
+			while (nextChunk < 2*nodeChunks || !formattedChunks.isEmpty()) {
+				//keep the pool busy...
+				while (nextChunk < 2*nodeChunks && formattedChunks.size() < maxWaitingChunks) {
+					final int from = (nextChunk % nodeChunks) * CHUNK_SIZE;
+					final int till = Math.min(from + CHUNK_SIZE, count);
+					final boolean isEdgesChunk = nextChunk >= nodeChunks;
+					++nextChunk;
+					formattedChunks.add( pool.submit(() -> {
+						final GraphMLEncoder chunk = obtainChunk();
+						if (isEdgesChunk)
+							chunk.writeEdges(from,till, ids, xs,ys, parentIds,bendingOffsetsY, width);
+						else
+							chunk.writeNodes(from,till, ids,labels,colours, xs,ys, width,height);
+						chunk.buffer.flip();
+						return chunk;
+					}) );
+				}
+
+				//...while placing the chunks into the file in the order
+				final GraphMLEncoder chunk = formattedChunks.poll().get();
+				if (isCompressed()) {
+					writeNext(chunk.buffer);
+					recycleChunk(chunk);
+				} else {
+					final long position = reserve(chunk.buffer.remaining());
+					writtenChunks.add( pool.submit(() -> {
+						writeAt(chunk.buffer, position);
+						recycleChunk(chunk);
+						return null;
+					}) );
+					//don't let the written chunks pile up (if the disk is slow)
+					while (writtenChunks.size() > noOfThreads
+							|| (!writtenChunks.isEmpty() && writtenChunks.peek().isDone()))
+						writtenChunks.poll().get();
+				}
+			}
+			while (!writtenChunks.isEmpty()) writtenChunks.poll().get();
+		} catch (IOException e) {
+			reportFailure(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) reportFailure((IOException)e.getCause());
+			else {
+				//not a disk problem but a bug, it shall not look like the former
+				failed = true;
+				if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+				if (e.getCause() instanceof Error) throw (Error)e.getCause();
+				throw new IllegalStateException(e.getCause());
+			}
+		} catch (InterruptedException e) {
+			reportFailure(new IOException("Interrupted while writing"));
+			Thread.currentThread().interrupt();
+		} finally {
+			//after a failure: the formatting touches only its own buffers and can be just
+			//abandoned, but the writing must be over before the file can be closed
+			formattedChunks.forEach(f -> f.cancel(false));
+			formattedChunks.clear();
+			awaitAll(writtenChunks);
+		}
+	}
+
+	/** waits (even if interrupted) for all the tasks to finish, ignoring their outcomes */
+	private static void awaitAll(final ArrayDeque<Future<?>> tasks)
+	{
+		boolean wasInterrupted = false;
+		while (!tasks.isEmpty()) {
+			try {
+				tasks.peek().get();
+				tasks.poll();
+			} catch (ExecutionException | CancellationException e) {
+				tasks.poll(); //the first failure has been reported already
+			} catch (InterruptedException e) {
+				wasInterrupted = true;
+			}
+		}
+		if (wasInterrupted) Thread.currentThread().interrupt();
+	}
+
+	private GraphMLEncoder obtainChunk()
+	{
+		final GraphMLEncoder chunk = spareChunks.poll();
+		return chunk != null ? chunk : new GraphMLEncoder(1 << 20);
+	}
+
+	private void recycleChunk(final GraphMLEncoder chunk)
+	{
+		chunk.buffer.clear();
+		spareChunks.add(chunk);
+	}
+}
@@ -0,0 +1,334 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2023, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package cz.it4i.ulman.transfers.graphexport;
+
+import org.scijava.log.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Forwards everything it is given into several other exporters, so that one lineage
+ * traversal is exported into several targets. Every target is fed by its own worker
+ * thread from its own bounded queue of the calls, so a slow target (e.g. a network
+ * connection) doesn't stall the others until its queue gets full.
+ *
+ * The grid parameters (the getters) are those of the first target, and the layout
+ * is thus made according to them. The coordinates are, however, rescaled for every
+ * other target to match its own column width and line step, and its own defaults
+ * (the bending offset and the node colour) are used instead of the first target's.
+ * The setters are forwarded to all targets.
+ * The arrays given to addNodesAndLines() must not be modified after the call.
+ */
+public class TeeGraphExporter extends AbstractGraphExporter implements GraphExportable
+{
+	/** one forwarded call */
+	private interface Call extends Consumer<GraphExportable> {}
+	private static final Call STOP = ge -> {};
+	private static final Call CLOSE = GraphExportable::close;
+
+	private class Target implements Runnable {
+		final GraphExportable ge;
+		final BlockingQueue<Call> calls;
+		final Thread worker;
+		boolean failed = false;
+
+		Target(final GraphExportable ge, final int queueSize) {
+			this.ge = ge;
+			calls = new ArrayBlockingQueue<>(queueSize);
+			worker = new Thread(this, "Tee export into "+ge.getClass().getSimpleName());
+			worker.setDaemon(true);
+			worker.start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				Call c = calls.take();
+				while (c != STOP) {
+					//NB: after a failure, the calls are still taken (to not block the caller),
+					//    and the target is still closed (to release its file or connection)
+					if (!failed || c == CLOSE) {
+						try {
+							c.accept(ge);
+						} catch (Throwable e) {
+							failed = true;
+							logger.error("Export into "+ge.getClass().getSimpleName()
+									+" failed and is skipped from now on: "+e.getMessage());
+						}
+					}
+					c = calls.take();
+				}
+			} catch (InterruptedException e) {
+				logger.warn("Export into "+ge.getClass().getSimpleName()+" was interrupted.");
+			}
+		}
+	}
+
+	/** the grid parameters of one exporter, used to convert the coordinates between two exporters */
+	private static final class Grid {
+		final int xColumnWidth, yLineStep, bendingOffsetY, nodeColour;
+
+		Grid(final GraphExportable ge) {
+			xColumnWidth = ge.get_xColumnWidth();
+			yLineStep = ge.get_yLineStep();
+			bendingOffsetY = ge.get_defaultBendingPointAbsoluteOffsetY();
+			nodeColour = ge.get_defaultNodeColour();
+		}
+
+		boolean isSameAs(final Grid to) {
+			return xColumnWidth == to.xColumnWidth && yLineStep == to.yLineStep
+					&& bendingOffsetY == to.bendingOffsetY && nodeColour == to.nodeColour;
+		}
+
+		int x(final int x, final Grid to) {
+			return xColumnWidth == 0 || xColumnWidth == to.xColumnWidth ? x
+					: Math.round((float)x * to.xColumnWidth / xColumnWidth);
+		}
+		int y(final int y, final Grid to) {
+			return yLineStep == 0 || yLineStep == to.yLineStep ? y
+					: Math.round((float)y * to.yLineStep / yLineStep);
+		}
+		/** the default offset is replaced with the target's default (which, e.g., could
+		 *  have been adjusted for rectangular lines), the others are rescaled */
+		int bending(final int offset, final Grid to) {
+			return offset == bendingOffsetY ? to.bendingOffsetY : y(offset, to);
+		}
+		int colour(final int colour, final Grid to) {
+			return colour == nodeColour ? to.nodeColour : colour;
+		}
+
+		int[] xs(final int count, final int[] xs, final Grid to) {
+			final int[] res = new int[count];
+			for (int i = 0; i < count; ++i) res[i] = x(xs[i], to);
+			return res;
+		}
+		int[] ys(final int count, final int[] ys, final Grid to) {
+			final int[] res = new int[count];
+			for (int i = 0; i < count; ++i) res[i] = y(ys[i], to);
+			return res;
+		}
+		int[] bendings(final int count, final int[] offsets, final Grid to) {
+			if (offsets == null) return null;
+			final int[] res = new int[count];
+			for (int i = 0; i < count; ++i) res[i] = bending(offsets[i], to);
+			return res;
+		}
+		int[] colours(final int count, final int[] colours, final Grid to) {
+			final int[] res = new int[count];
+			for (int i = 0; i < count; ++i) res[i] = colour(colours[i], to);
+			return res;
+		}
+	}
+
+	/** one forwarded call that places something, its coordinates are given
+	 *  in the grid of this exporter, the target's own grid is given too */
+	private interface PlacingCall {
+		void accept(GraphExportable ge, Grid from, Grid to);
+	}
+
+	/** the coordinates are converted when the call is executed since the setters,
+	 *  which may change the grid of the targets, are queued in the order of the calls */
+	private void forward(final PlacingCall call) {
+		final Grid from = new Grid(this);
+		forward(ge -> call.accept(ge, from, new Grid(ge)));
+	}
+
+	private final List<Target> targets;
+	private final Logger logger;
+	private boolean isClosed = false;
+
+	public TeeGraphExporter(final List<GraphExportable> exporters, final Logger logger)
+	{
+		this(exporters, 1000, logger);
+	}
+
+	/** 'queueSize' is the max number of calls waiting for each target */
+	public TeeGraphExporter(final List<GraphExportable> exporters, final int queueSize, final Logger logger)
+	{
+		if (exporters.isEmpty()) throw new IllegalArgumentException("No exporters to forward to.");
+		this.logger = logger;
+
+		final GraphExportable first = exporters.get(0);
+		xColumnWidth = first.get_xColumnWidth();
+		yLineStep = first.get_yLineStep();
+		defaultBendingPointAbsoluteOffsetY = first.get_defaultBendingPointAbsoluteOffsetY();
+		defaultNodeWidth = first.get_defaultNodeWidth();
+		defaultNodeHeight = first.get_defaultNodeHeight();
+		defaultNodeColour = first.get_defaultNodeColour();
+
+		targets = new ArrayList<>(exporters.size());
+		for (GraphExportable ge : exporters) targets.add( new Target(ge, queueSize) );
+	}
+
+	private void forward(final Call call) {
+		if (isClosed) throw new IllegalStateException("The exporter is closed already.");
+		try {
+			for (Target t : targets) t.calls.put(call);
+		} catch (InterruptedException e) {
+			throw new IllegalStateException("Interrupted while forwarding the export.", e);
+		}
+	}
+
+	/** closes all targets, and returns only after they are done with the calls
+	 *  they were given and are closed (which, for some targets, may only mean
+	 *  that their closing has been started) */
+	@Override
+	public void close() {
+		if (isClosed) return;
+		forward(CLOSE);
+		forward(STOP);
+		isClosed = true;
+
+		try {
+			for (Target t : targets) t.worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.warn("Interrupted while waiting for the exports to finish.");
+		}
+	}
+	// -----------------------------------------------------------------------------
+
+	@Override
+	public void set_xColumnWidth(int val) {
+		super.set_xColumnWidth(val);
+		forward(ge -> ge.set_xColumnWidth(val));
+	}
+	@Override
+	public void set_yLineStep(int val) {
+		super.set_yLineStep(val);
+		forward(ge -> ge.set_yLineStep(val));
+	}
+	@Override
+	public void set_defaultBendingPointAbsoluteOffsetY(int val) {
+		super.set_defaultBendingPointAbsoluteOffsetY(val);
+		forward(ge -> ge.set_defaultBendingPointAbsoluteOffsetY(val));
+	}
+	@Override
+	public void set_defaultNodeWidth(int val) {
+		super.set_defaultNodeWidth(val);
+		forward(ge -> ge.set_defaultNodeWidth(val));
+	}
+	@Override
+	public void set_defaultNodeHeight(int val) {
+		super.set_defaultNodeHeight(val);
+		forward(ge -> ge.set_defaultNodeHeight(val));
+	}
+	@Override
+	public void set_defaultNodeColour(int val) {
+		super.set_defaultNodeColour(val);
+		forward(ge -> ge.set_defaultNodeColour(val));
+	}
+	// -----------------------------------------------------------------------------
+
+	@Override
+	public void addNode(String id, String label, int colorRGB, int x, int y) {
+		forward((ge,f,t) -> ge.addNode(id, label,f.colour(colorRGB,t), f.x(x,t),f.y(y,t)));
+	}
+
+	@Override
+	public void addNode(String id, String label, int colorRGB, int x, int y, int width, int height) {
+		forward((ge,f,t) -> ge.addNode(id, label,f.colour(colorRGB,t), f.x(x,t),f.y(y,t), width,height));
+	}
+
+	@Override
+	public void addStraightLine(String fromId, String toId) {
+		forward(ge -> ge.addStraightLine(fromId, toId));
+	}
+
+	@Override
+	public void addStraightLineConnectedVertex(String parentNodeID, String newNodeID, String label, int colorRGB, int x, int y) {
+		forward((ge,f,t) -> ge.addStraightLineConnectedVertex(parentNodeID, newNodeID, label,f.colour(colorRGB,t), f.x(x,t),f.y(y,t)));
+	}
+
+	@Override
+	public void addBendedLine(String fromId, String toId, int toX, int toY) {
+		forward((ge,f,t) -> ge.addBendedLine(fromId, toId, f.x(toX,t),f.y(toY,t)));
+	}
+
+	@Override
+	public void addBendedLine(String fromId, String toId, int toX, int toY, int bendingOffsetY) {
+		forward((ge,f,t) -> ge.addBendedLine(fromId, toId, f.x(toX,t),f.y(toY,t), f.bending(bendingOffsetY,t)));
+	}
+
+	@Override
+	public void addBendedLineConnectedVertex(String parentNodeID, String newNodeID, String label, int colorRGB, int x, int y) {
+		forward((ge,f,t) -> ge.addBendedLineConnectedVertex(parentNodeID, newNodeID, label,f.colour(colorRGB,t), f.x(x,t),f.y(y,t)));
+	}
+
+	@Override
+	public void addNode(int id, String label, int colorRGB, int x, int y) {
+		forward((ge,f,t) -> ge.addNode(id, label,f.colour(colorRGB,t), f.x(x,t),f.y(y,t)));
+	}
+
+	@Override
+	public void addNode(int id, String label, int colorRGB, int x, int y, int width, int height) {
+		forward((ge,f,t) -> ge.addNode(id, label,f.colour(colorRGB,t), f.x(x,t),f.y(y,t), width,height));
+	}
+
+	@Override
+	public void addStraightLine(int fromId, int toId) {
+		forward(ge -> ge.addStraightLine(fromId, toId));
+	}
+
+	@Override
+	public void addBendedLine(int fromId, int toId, int toX, int toY) {
+		forward((ge,f,t) -> ge.addBendedLine(fromId, toId, f.x(toX,t),f.y(toY,t)));
+	}
+
+	@Override
+	public void addBendedLine(int fromId, int toId, int toX, int toY, int bendingOffsetY) {
+		forward((ge,f,t) -> ge.addBendedLine(fromId, toId, f.x(toX,t),f.y(toY,t), f.bending(bendingOffsetY,t)));
+	}
+
+	@Override
+	public void addNodesAndLines(final int count,
+	                             final int[] ids, final String[] labels, final int[] colours,
+	                             final int[] xs, final int[] ys,
+	                             final int[] parentIds, final int[] bendingOffsetsY)
+	{
+		forward((ge,f,t) -> {
+			if (f.isSameAs(t)) ge.addNodesAndLines(count, ids, labels, colours, xs, ys, parentIds, bendingOffsetsY);
+			else ge.addNodesAndLines(count, ids, labels, f.colours(count,colours,t),
+					f.xs(count,xs,t), f.ys(count,ys,t), parentIds, f.bendings(count,bendingOffsetsY,t));
+		});
+	}
+
+	@Override
+	public void startTree(int rootId, String rootLabel) {
+		forward(ge -> ge.startTree(rootId, rootLabel));
+	}
+
+	@Override
+	public void removeTree(int rootId) {
+		forward(ge -> ge.removeTree(rootId));
+	}
+}
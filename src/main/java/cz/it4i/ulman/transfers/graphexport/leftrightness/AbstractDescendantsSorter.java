@@ -38,14 +38,23 @@ import java.util.Iterator;
 public class AbstractDescendantsSorter implements DescendantsSorter {
 	@Override
 	public void sort(RefList<Spot> listOfDaughters) {
-		listOfDaughters.sort(comparator);
+		if (sortsByPositions()) {
+			final PositionsComparator c = positionsComparators.get();
+			c.readPositions(listOfDaughters, null);
+			listOfDaughters.sort(c);
+		}
+		else listOfDaughters.sort(comparator);
 	}
 
 	@Override
 	public void sort(RefList<Spot> listOfDaughters, final Logger log) {
-		this.log = log;
 		log.info("SORTER BEFORE: "+printList(listOfDaughters));
-		listOfDaughters.sort(verboseComparator);
+		if (sortsByPositions()) {
+			final PositionsComparator c = positionsComparators.get();
+			c.readPositions(listOfDaughters, log);
+			listOfDaughters.sort(c);
+		}
+		else listOfDaughters.sort(comparator);
 		log.info("SORTER  AFTER: "+printList(listOfDaughters));
 	}
 
@@ -53,10 +62,176 @@ public class AbstractDescendantsSorter implements DescendantsSorter {
 	/** default behaviour that compares using spots' labels */
 	Comparator<Spot> comparator = Comparator.comparing(Spot::getLabel);
 
-	/** verbose comparator that should be using this.log to report about its work,
-	 * but that in this default form only uses the optimal (non-verbose) one */
-	Comparator<Spot> verboseComparator = (a, b) -> comparator.compare(a,b);
-	Logger log;
+
+	/** whether the sorting uses comparePositions() instead of the comparator */
+	boolean sortsByPositions() {
+		return false;
+	}
+
+	/** compares two (different) daughters given only their positions: d1 and d2 are offsets
+	 * into the 'positions' where the x,y,z coordinates of all daughters being sorted are stored
+	 * one after another; it is called for every comparison, and should therefore not allocate
+	 * anything unless the 'log' is given (which is null when not sorting verbosely) */
+	int comparePositions(final double[] positions, final int d1, final int d2, final Logger log) {
+		return 0;
+	}
+
+	/** one per thread since the same sorter can be used from more threads at the same time */
+	private final ThreadLocal<PositionsComparator> positionsComparators
+			= ThreadLocal.withInitial(PositionsComparator::new);
+
+	/** reads the positions of the daughters once before they are sorted,
+	 * and then compares them with comparePositions() */
+	private class PositionsComparator implements Comparator<Spot> {
+		int[] poolIndices = new int[4];
+		double[] positions = new double[12];
+		int size = 0;
+		Logger log = null;
+
+		void readPositions(final RefList<Spot> listOfDaughters, final Logger log) {
+			this.log = log;
+			size = listOfDaughters.size();
+			if (poolIndices.length < size) {
+				poolIndices = new int[size];
+				positions = new double[3*size];
+			}
+			final Spot sRef = listOfDaughters.createRef();
+			for (int i = 0; i < size; ++i) {
+				final Spot s = listOfDaughters.get(i, sRef);
+				poolIndices[i] = s.getInternalPoolIndex();
+				positions[3*i  ] = s.getDoublePosition(0);
+				positions[3*i+1] = s.getDoublePosition(1);
+				positions[3*i+2] = s.getDoublePosition(2);
+			}
+			listOfDaughters.releaseRef(sRef);
+		}
+
+		int offsetOf(final Spot s) {
+			final int poolIndex = s.getInternalPoolIndex();
+			for (int i = 0; i < size; ++i)
+				if (poolIndices[i] == poolIndex) return 3*i;
+			throw new IllegalStateException("Spot "+s.getLabel()+" is not among the sorted daughters.");
+		}
+
+		@Override
+		public int compare(final Spot d1, final Spot d2) {
+			if (log != null) log.info("Comparing between d1: "+d1.getLabel()+" and d2: "+d2.getLabel());
+			if (d1.equals(d2)) {
+				if (log != null) log.info("... which are the same spot");
+				return 0;
+			}
+			return comparePositions(positions, offsetOf(d1), offsetOf(d2), log);
+		}
+	}
+
+	/** to convert the outcome of Math.acos() */
+	static final double radToDegFactor = 180.0 / Math.PI;
+
+
+	/** user param of the sorters by positions: what maximal incidence angle can there be between
+	 *  a vector from daughter1 to the centre and a vector from daughter1 to daughter2 so that daughter2
+	 *  will be declared to be moving *towards* the centre (establishing another cell level) rather
+	 *  than dividing into a side-by-side configuration (within animal surface) */
+	public double layeringLowerCutoffAngleDeg = 30;
+
+	/** user param: quite similar to this.layeringLowerCutoffAngleDeg but to declare that daughter2
+	 *  is moving *outwards* the centre */
+	public double layeringUpperCutoffAngleDeg = 150; //NB: 150 = 180-30
+
+	/** the common part of the sorters by positions: tells if the daughters (at the offsets d1 and d2
+	 * into the 'p') form two layers w.r.t. the given centre, and if they don't, it finds the normal
+	 * of the plane given by the daughters and the centre, and lets compareSideBySide() decide */
+	int compareAroundCentre(final double[] p, final int d1, final int d2,
+	                        final double cx, final double cy, final double cz, final Logger log) {
+		//super useful shortcuts... d1->d2 and d1->centre, both normalized
+		double d1tod2x = p[d2]-p[d1], d1tod2y = p[d2+1]-p[d1+1], d1tod2z = p[d2+2]-p[d1+2];
+		double invLength = 1.0 / Math.sqrt(d1tod2x*d1tod2x + d1tod2y*d1tod2y + d1tod2z*d1tod2z);
+		d1tod2x *= invLength; d1tod2y *= invLength; d1tod2z *= invLength;
+		double d1tocx = cx-p[d1], d1tocy = cy-p[d1+1], d1tocz = cz-p[d1+2];
+		invLength = 1.0 / Math.sqrt(d1tocx*d1tocx + d1tocy*d1tocy + d1tocz*d1tocz);
+		d1tocx *= invLength; d1tocy *= invLength; d1tocz *= invLength;
+
+		//layering:
+		//
+		//check the angle between d1->centre and d1->d2,
+		//does it carry a sign of starting two layers?
+		final double angle_d2d1c_deg = Math.acos( d1tocx*d1tod2x + d1tocy*d1tod2y + d1tocz*d1tod2z ) *radToDegFactor;
+		//d2 is closer to centre than d1
+		if (angle_d2d1c_deg <= layeringLowerCutoffAngleDeg) {
+			if (log != null) log.info("  d1 is outer->right of d2");
+			return +1;
+		}
+		//d1 is closer to centre than d2
+		else if (angle_d2d1c_deg >= layeringUpperCutoffAngleDeg) {
+			if (log != null) log.info("  d1 is inner->left of d2");
+			return -1;
+		}
+		//NB: tree of a daughter closer to the centre is drawn first (in left)
+
+		if (log != null) log.info("  layering angle: "+angle_d2d1c_deg);
+
+		//side-by-side configuration:
+		//
+		//consider a triangle/plane given by d1,d2 and c, its normal is d1->d2 x d1->centre
+		double tUpx = d1tod2y*d1tocz - d1tod2z*d1tocy;
+		double tUpy = d1tod2z*d1tocx - d1tod2x*d1tocz;
+		double tUpz = d1tod2x*d1tocy - d1tod2y*d1tocx;
+		invLength = 1.0 / Math.sqrt(tUpx*tUpx + tUpy*tUpy + tUpz*tUpz);
+		tUpx *= invLength; tUpy *= invLength; tUpz *= invLength;
+
+		if (log != null) log.info("  tUP: "+printVector(tUpx,tUpy,tUpz,100));
+
+		return compareSideBySide(tUpx,tUpy,tUpz, d1tod2x,d1tod2y,d1tod2z, log);
+	}
+
+	/** decides about the daughters in the side-by-side configuration, given the (normalized)
+	 * normal of the plane of the daughters and the centre, and the (normalized) d1->d2 vector */
+	int compareSideBySide(final double tUpx, final double tUpy, final double tUpz,
+	                      final double d1tod2x, final double d1tod2y, final double d1tod2z,
+	                      final Logger log) {
+		return 0;
+	}
+
+	/** compareSideBySide() w.r.t. the single (normalized) up-vector: if the angle between the
+	 * plane's normal and the up-vector is larger than 'lrTOupThresholdAngleDeg' the sense becomes
+	 * more down/up than left/right and the decision is made accordingly, the bottom cell is left */
+	static int compareSideBySideWithUpAxis(final double tUpx, final double tUpy, final double tUpz,
+	                                       final double d1tod2x, final double d1tod2y, final double d1tod2z,
+	                                       final Vector3d axisUp, final double lrTOupThresholdAngleDeg,
+	                                       final Logger log) {
+		//angle between triangle's normal and up-vector (south-to-north axis)
+		final double angle_upsDiff_deg = Math.acos( tUpx*axisUp.x + tUpy*axisUp.y + tUpz*axisUp.z ) *radToDegFactor;
+		if (angle_upsDiff_deg < lrTOupThresholdAngleDeg)
+		{
+			if (log != null) log.info("  parallel (diff: "+angle_upsDiff_deg+" deg): d1 is left of d2");
+
+			//left-right case, up vectors are nearly parallel
+			//d1 is left d2
+			return -1;
+		}
+		else if (angle_upsDiff_deg > (180-lrTOupThresholdAngleDeg))
+		{
+			if (log != null) log.info("  opposite (diff: "+(180-angle_upsDiff_deg)+" deg): d1 is right of d2");
+
+			//left-right case, up vectors are nearly opposite
+			//d1 is right d2
+			return +1;
+		}
+
+		//up-down case
+		final double upDownCos = d1tod2x*axisUp.x + d1tod2y*axisUp.y + d1tod2z*axisUp.z;
+		if (log != null) {
+			log.info("  perpendicularity (abs ang: "+angle_upsDiff_deg+" deg), would have said: d1 is "
+					+(angle_upsDiff_deg < 90? "left":"right")+" of d2");
+			final double upDownAngle = Math.acos(upDownCos) * radToDegFactor;
+			if (upDownCos > 0)
+				log.info("  same orientation (ang: "+upDownAngle+" deg): d1 is down/left of d2");
+			else
+				log.info("  opposite orientation (ang: "+(180-upDownAngle)+" deg): d1 is up/right of d2");
+		}
+		//                  down  up
+		return upDownCos > 0 ? -1 : +1;
+	}
 
 
 	public static
@@ -75,7 +250,19 @@ public class AbstractDescendantsSorter implements DescendantsSorter {
 
 	public static
 	String printVector(final Vector3d v, final int scale) {
-		return String.format("(%.1f,%.1f,%.1f)",scale*v.x,scale*v.y,scale*v.z);
+		return printVector(v.x,v.y,v.z, scale);
+	}
+
+	public static
+	String printVector(final double x, final double y, final double z, final int scale) {
+		return String.format("(%.1f,%.1f,%.1f)",scale*x,scale*y,scale*z);
+	}
+
+	/** unlike the Vector3d.toString(), it is not rounded, so that describeSettings()
+	 * changes whenever a sorter's reference spot has moved even only a little */
+	static
+	String describeVector(final Vector3d v) {
+		return "("+v.x+","+v.y+","+v.z+")";
 	}
 
 	/** if a caller want a sorter to export some "graphics" (as nodes and/or lines),
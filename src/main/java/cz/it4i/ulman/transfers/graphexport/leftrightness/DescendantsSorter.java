@@ -31,6 +31,12 @@ import org.mastodon.collection.RefList;
 import org.mastodon.mamut.model.Spot;
 import org.scijava.log.Logger;
 
+/**
+ * The non-verbose sort() may be called from several threads at the same time (with
+ * different lists), e.g. when lineages are laid out in parallel, so implementations
+ * must not keep any per-call state in their fields (or must keep it per thread).
+ * The verbose sort() is used only from one thread at a time.
+ */
 public interface DescendantsSorter {
 	/** Sorts, by applying certain criterion, the descendant spots (daughters) within the given list. */
 	void sort(final RefList<Spot> listOfDaughters);
@@ -45,4 +51,11 @@ public interface DescendantsSorter {
 	default void sort(final RefList<Spot> listOfDaughters, final Logger debugLogger) {
 		sort(listOfDaughters);
 	}
+
+	/** Describes the sorter together with its current settings. Two sorters with the
+	 * same description must sort any daughters equally, caches of the lineage layouts
+	 * rely on it. The default description is the sorter's class name. */
+	default String describeSettings() {
+		return getClass().getName();
+	}
 }
@@ -29,7 +29,7 @@ package cz.it4i.ulman.transfers.graphexport.leftrightness;
 
 import cz.it4i.ulman.transfers.graphexport.GraphExportable;
 import org.joml.Vector3d;
-import static cz.it4i.ulman.transfers.graphexport.Utils.createVector3d;
+import org.scijava.log.Logger;
 
 public class TriangleSorter extends AbstractDescendantsSorter {
 	/** centre position (around which the lineage "revolves") */
@@ -43,211 +43,66 @@ public class TriangleSorter extends AbstractDescendantsSorter {
 	/** cross product of axisA x axisB */
 	final Vector3d axisC;
 
-	/** user param: what maximal incidence angle can there be between a vector from daughter1
-	 * to this.centre and a vector from daughter1 to daughter2 so that daughter2 will be declared
-	 * to be moving *towards* the centre (establishing another cell level) rather than dividing
-	 * into a side-by-side configuration (within animal surface) */
-	public double layeringLowerCutoffAngleDeg = 30;
-
-	/** user param: quite similar to this.layeringLowerCutoffAngleDeg but to declare that daughter2
-	 * is moving *outwards* the centre */
-	public double layeringUpperCutoffAngleDeg = 150; //NB: 150 = 180-30
-
 	public TriangleSorter(final Vector3d posCentre, final Vector3d posA, final Vector3d posB)
 	{
 		centre = new Vector3d(posCentre); //NB: own copy!
 		axisA = new Vector3d(posA).sub(centre).normalize();
 		axisB = new Vector3d(posB).sub(centre).normalize();
 		axisC = new Vector3d(axisA).cross(axisB).normalize();
+	}
 
-		final double radToDegFactor = 180.0 / Math.PI;
-
-		this.comparator = (d1, d2) -> {
-			if (d1.equals(d2)) return 0;
-
-			final Vector3d d1pos = createVector3d(d1);
-			final Vector3d d2pos = createVector3d(d2);
-
-			//super useful shortcuts...
-			final Vector3d d1tod2 = new Vector3d(d2pos).sub(d1pos).normalize();
-			final Vector3d d1toc  = new Vector3d(centre).sub(d1pos).normalize();
-
-			//layering:
-			//
-			//check the angle between d1->centre and d1->d2,
-			//does it carry a sign of starting two layers?
-			double angle_d2d1c_deg = Math.acos( d1toc.dot(d1tod2) ) *radToDegFactor;
-			//d2 is closer to centre than d1
-			if (angle_d2d1c_deg <= layeringLowerCutoffAngleDeg) return +1;
-				//d1 is closer to centre than d2
-			else if (angle_d2d1c_deg >= layeringUpperCutoffAngleDeg) return -1;
-			//NB: tree of a daughter closer to the centre is drawn first (in left)
-
-			//side-by-side configuration:
-			//
-			//consider a triangle/plane given by d1,d2 and c,
-			//to tell if d1 is left from d2 within this plane, we need an "up" vector
-			//'cause left-right gets reversed if you're up-side-down
-			//
-			//for the outside global observer (as if standing on the ground), the left wing of
-			//a rolled-over plane is in fact the plane's right wing (plane's local un-anchored view)
-			final Vector3d triangleUp = new Vector3d(d1tod2).cross(d1toc).normalize();
-
-			//find the most parallel axis (aka the most relevant anchor) to the triangle's up vector
-			double bestParallelAng = Math.PI / 2.0;
-			AxisName bestAxis = AxisName.NONE;
-			boolean positiveDirOfBestAxis = true;
-
-			double angle = Math.acos( axisC.dot(triangleUp) );
-			if (angle < bestParallelAng) {
-				bestAxis = AxisName.C_ZZ;
-				positiveDirOfBestAxis = true;
-				bestParallelAng = angle;
-			}
-			if (angle > (Math.PI-bestParallelAng)) {
-				bestAxis = AxisName.C_ZZ;
-				positiveDirOfBestAxis = false;
-				bestParallelAng = Math.PI - angle;
-			}
-
-			angle = Math.acos( axisB.dot(triangleUp) );
-			if (angle < bestParallelAng) {
-				bestAxis = AxisName.B_YY;
-				positiveDirOfBestAxis = true;
-				bestParallelAng = angle;
-			}
-			if (angle > (Math.PI-bestParallelAng)) {
-				bestAxis = AxisName.B_YY;
-				positiveDirOfBestAxis = false;
-				bestParallelAng = Math.PI - angle;
-			}
-
-			angle = Math.acos( axisA.dot(triangleUp) );
-			if (angle < bestParallelAng) {
-				bestAxis = AxisName.A_XX;
-				positiveDirOfBestAxis = true;
-				bestParallelAng = angle;
-			}
-			if (angle > (Math.PI-bestParallelAng)) {
-				bestAxis = AxisName.A_XX;
-				positiveDirOfBestAxis = false;
-				bestParallelAng = Math.PI - angle;
-			}
-
-			System.out.println("Best axis: "+(positiveDirOfBestAxis ? "positive ":"negative ")+bestAxis);
-			System.out.println("Best angle: "+bestParallelAng*radToDegFactor+" deg");
-			//NB: super.log might not be set here (in this non-verbose regime)
-
-			return positiveDirOfBestAxis? -1 : +1;
-		};
-
-
-		this.verboseComparator = (d1, d2) -> {
-			log.info("Comparing between: "+d1.getLabel()+" and "+d2.getLabel());
-			if (d1.equals(d2)) {
-				log.info("... which are at the same position");
-				return 0;
-			}
-
-			final Vector3d d1pos = createVector3d(d1);
-			final Vector3d d2pos = createVector3d(d2);
-
-			//super useful shortcuts...
-			final Vector3d d1tod2 = new Vector3d(d2pos).sub(d1pos).normalize();
-			final Vector3d d1toc  = new Vector3d(centre).sub(d1pos).normalize();
-
-			//layering:
-			//
-			//check the angle between d1->centre and d1->d2,
-			//does it carry a sign of starting two layers?
-			double angle_d2d1c_deg = Math.acos( d1toc.dot(d1tod2) ) *radToDegFactor;
-			//d2 is closer to centre than d1
-			if (angle_d2d1c_deg <= layeringLowerCutoffAngleDeg) {
-				log.info("  "+d1.getLabel()+" is outer->right of "+d2.getLabel());
-				return +1;
-			}
-			//d1 is closer to centre than d2
-			else if (angle_d2d1c_deg >= layeringUpperCutoffAngleDeg) {
-				log.info("  "+d1.getLabel()+" is inner->left of "+d2.getLabel());
-				return -1;
-			}
-			//NB: tree of a daughter closer to the centre is drawn first (in left)
-
-			log.info("  layering angle: "+angle_d2d1c_deg);
-
-			//side-by-side configuration:
-			//
-			//consider a triangle/plane given by d1,d2 and c,
-			//to tell if d1 is left from d2 within this plane, we need an "up" vector
-			//'cause left-right gets reversed if you're up-side-down
-			//
-			//for the outside global observer (as if standing on the ground), the left wing of
-			//a rolled-over plane is in fact the plane's right wing (plane's local un-anchored view)
-			final Vector3d triangleUp = new Vector3d(d1tod2).cross(d1toc).normalize();
-
-			log.info("  tUP: "+printVector(triangleUp,100));
-
-			//find the most parallel axis (aka the most relevant anchor) to the triangle's up vector
-			double bestParallelAng = Math.PI / 2.0;
-			AxisName bestAxis = AxisName.NONE;
-			boolean positiveDirOfBestAxis = true;
-
-			double angle = Math.acos( axisC.dot(triangleUp) );
-			if (angle < bestParallelAng) {
-				bestAxis = AxisName.C_ZZ;
-				positiveDirOfBestAxis = true;
-				bestParallelAng = angle;
-				log.info("  better axis: "+(positiveDirOfBestAxis ? "positive ":"negative ")
-						+bestAxis+"   (angle "+angle*radToDegFactor+" deg)");
-			}
-			if (angle > (Math.PI-bestParallelAng)) {
-				bestAxis = AxisName.C_ZZ;
-				positiveDirOfBestAxis = false;
-				bestParallelAng = Math.PI - angle;
-				log.info("  better axis: "+(positiveDirOfBestAxis ? "positive ":"negative ")
-						+bestAxis+"   (angle "+angle*radToDegFactor+" deg)");
-			}
+	@Override
+	boolean sortsByPositions() {
+		return true;
+	}
 
-			angle = Math.acos( axisB.dot(triangleUp) );
-			if (angle < bestParallelAng) {
-				bestAxis = AxisName.B_YY;
-				positiveDirOfBestAxis = true;
-				bestParallelAng = angle;
-				log.info("  better axis: "+(positiveDirOfBestAxis ? "positive ":"negative ")
-						+bestAxis+"   (angle "+angle*radToDegFactor+" deg)");
-			}
-			if (angle > (Math.PI-bestParallelAng)) {
-				bestAxis = AxisName.B_YY;
-				positiveDirOfBestAxis = false;
-				bestParallelAng = Math.PI - angle;
-				log.info("  better axis: "+(positiveDirOfBestAxis ? "positive ":"negative ")
-						+bestAxis+"   (angle "+angle*radToDegFactor+" deg)");
-			}
+	@Override
+	int comparePositions(final double[] p, final int d1, final int d2, final Logger log) {
+		return compareAroundCentre(p, d1, d2, centre.x,centre.y,centre.z, log);
+	}
 
-			angle = Math.acos( axisA.dot(triangleUp) );
+	/** to tell if d1 is left from d2 within the plane, we need an "up" vector
+	 * 'cause left-right gets reversed if you're up-side-down;
+	 *
+	 * for the outside global observer (as if standing on the ground), the left wing of
+	 * a rolled-over plane is in fact the plane's right wing (plane's local un-anchored view) */
+	@Override
+	int compareSideBySide(final double tUpx, final double tUpy, final double tUpz,
+	                      final double d1tod2x, final double d1tod2y, final double d1tod2z,
+	                      final Logger log) {
+		//find the most parallel axis (aka the most relevant anchor) to the triangle's up vector
+		double bestParallelAng = Math.PI / 2.0;
+		AxisName bestAxis = AxisName.NONE;
+		boolean positiveDirOfBestAxis = true;
+
+		for (AxisName axis : AXES_BY_PRIORITY) {
+			final Vector3d axisVec = axis == AxisName.C_ZZ ? axisC : (axis == AxisName.B_YY ? axisB : axisA);
+			final double angle = Math.acos( axisVec.x*tUpx + axisVec.y*tUpy + axisVec.z*tUpz );
 			if (angle < bestParallelAng) {
-				bestAxis = AxisName.A_XX;
+				bestAxis = axis;
 				positiveDirOfBestAxis = true;
 				bestParallelAng = angle;
-				log.info("  better axis: "+(positiveDirOfBestAxis ? "positive ":"negative ")
-						+bestAxis+"   (angle "+angle*radToDegFactor+" deg)");
+				if (log != null) log.info("  better axis: positive "+bestAxis+"   (angle "+angle*radToDegFactor+" deg)");
 			}
 			if (angle > (Math.PI-bestParallelAng)) {
-				bestAxis = AxisName.A_XX;
+				bestAxis = axis;
 				positiveDirOfBestAxis = false;
 				bestParallelAng = Math.PI - angle;
-				log.info("  better axis: "+(positiveDirOfBestAxis ? "positive ":"negative ")
-						+bestAxis+"   (angle "+angle*radToDegFactor+" deg)");
+				if (log != null) log.info("  better axis: negative "+bestAxis+"   (angle "+angle*radToDegFactor+" deg)");
 			}
+		}
 
+		if (log != null) {
 			log.info("  best axis: "+(positiveDirOfBestAxis ? "positive ":"negative ")+bestAxis);
 			log.info("  best angle: "+bestParallelAng*radToDegFactor+" deg");
-
-			log.info("= "+d1.getLabel()+(positiveDirOfBestAxis ? " left of ":" right of ")+d2.getLabel());
-			return positiveDirOfBestAxis? -1 : +1;
-		};
+			log.info("= d1"+(positiveDirOfBestAxis ? " left of ":" right of ")+"d2");
+		}
+		return positiveDirOfBestAxis? -1 : +1;
 	}
 
+	/** the order in which the axes are examined, the later one wins when equally parallel */
+	private static final AxisName[] AXES_BY_PRIORITY = { AxisName.C_ZZ, AxisName.B_YY, AxisName.A_XX };
+
 	public enum AxisName { A_XX,B_YY,C_ZZ,NONE };
 
 	@Override
@@ -258,4 +113,10 @@ public class TriangleSorter extends AbstractDescendantsSorter {
 		ge.addNode("B","B at "+printVector(axisB,100), 0, 0,0);
 		ge.addNode("C","C at "+printVector(axisC,100), 0, 0,0);
 	}
+
+	@Override
+	public String describeSettings() {
+		return "triangle: centre "+describeVector(centre)+", axes "+describeVector(axisA)+" "+describeVector(axisB)
+				+", angles "+layeringLowerCutoffAngleDeg+" "+layeringUpperCutoffAngleDeg;
+	}
 }
@@ -27,6 +27,7 @@
  */
 package cz.it4i.ulman.transfers.graphexport.ui;
 
+import cz.it4i.ulman.transfers.BlenderSendingUtils;
 import cz.it4i.ulman.transfers.graphexport.BlenderWriter;
 import cz.it4i.ulman.transfers.graphexport.ui.util.PerProjectPrefsService;
 import org.scijava.ItemVisibility;
@@ -45,6 +46,14 @@ public class BlenderWriterDlg extends AbstractGraphExportableDlg implements Comm
 	@Parameter(label = "Use this Z-position:")
 	float defaultZCoord = 0;
 
+	@Parameter(label = "Send nodes in the compact (packed) form:",
+		description = "Requires Blender add-on that understands the packed spheres.")
+	boolean usePackedSpheres = false;
+
+	@Parameter(label = "Split too large batches into several messages:",
+		description = "Requires Blender add-on that understands the continued batches.")
+	boolean splitLargeBatches = false;
+
 	//NB: persist = false because we read/store ourselves
 	@Parameter(label = "Nickname of this Mastodon instance (ns):", initializer = "loadDataNickname", persist = false)
 	String clientName = "Mastodon1";
@@ -91,6 +100,8 @@ public class BlenderWriterDlg extends AbstractGraphExportableDlg implements Comm
 		final BlenderWriter bw = new BlenderWriter(url, clientName,logService);
 		bw.lineRadius = defaultLineWidth*5;
 		bw.z_coord = defaultZCoord;
+		bw.usePackedSpheres = usePackedSpheres;
+		if (splitLargeBatches) bw.maxMessageSize = BlenderSendingUtils.DEFAULT_MAX_MESSAGE_SIZE;
 		bw.sendMessage("I've been just created...");
 		bw.startSendingGraphics(dataName,42);
 		logService.info("initiated connection to Blender");
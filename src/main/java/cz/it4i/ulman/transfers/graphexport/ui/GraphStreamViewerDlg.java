@@ -29,11 +29,24 @@ package cz.it4i.ulman.transfers.graphexport.ui;
 
 import cz.it4i.ulman.transfers.graphexport.GraphStreamViewer;
 import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 @Plugin(type = Command.class, name = "Export into GraphStreamer Window")
 public class GraphStreamViewerDlg extends AbstractGraphExportableDlg implements Command {
 	// ------ options and setup of this particular export mode ------
+	@Parameter(label = "Show the lineage only when fully loaded:",
+		description = "Faster for big lineages: the window is not redrawn while the lineage is being loaded.")
+	boolean bulkLoading = true;
+
+	@Parameter(label = "Expected number of nodes:", min = "0",
+		description = "Only a hint to prepare the window for the lineage.")
+	int expectedNoOfNodes = 1000;
+
+	@Parameter(label = "Collapse subtrees narrower than [px]:", min = "0",
+		description = "Level of detail for big lineages: such subtrees are shown as one node and expand when zoomed in. Zero shows all nodes.")
+	int lodThresholdPx = 0;
+
 	@Override
 	void provideDefaults() {
 		xColumnWidth = 300;
@@ -42,6 +55,6 @@ public class GraphStreamViewerDlg extends AbstractGraphExportableDlg implements
 	// ------ after all options are set, the workhorse is to be created here ------
 	@Override
 	public void run() {
-		worker = new GraphStreamViewer("Mastodon Generated Lineage");
+		worker = new GraphStreamViewer("Mastodon Generated Lineage", bulkLoading, expectedNoOfNodes, lodThresholdPx);
 	}
 }
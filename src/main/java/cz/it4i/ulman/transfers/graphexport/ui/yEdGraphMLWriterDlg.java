@@ -27,6 +27,7 @@
  */
 package cz.it4i.ulman.transfers.graphexport.ui;
 
+import cz.it4i.ulman.transfers.graphexport.ParallelYEdGraphMLWriter;
 import cz.it4i.ulman.transfers.graphexport.yEdGraphMLWriter;
 import org.scijava.command.Command;
 import org.scijava.log.LogService;
@@ -38,9 +39,14 @@ import java.io.File;
 @Plugin(type = Command.class, name = "Export into yEd")
 public class yEdGraphMLWriterDlg extends AbstractGraphExportableDlg implements Command {
 	// ------ options and setup of this particular export mode ------
-	@Parameter(label = "Define .graphml file to save the lineage: ", style = FileWidget.SAVE_STYLE)
+	@Parameter(label = "Define .graphml file to save the lineage: ", style = FileWidget.SAVE_STYLE,
+		description = "Use the .graphmlz extension to have the file compressed.")
 	File graphMLfile;
 
+	@Parameter(label = "Number of threads to format the file:", min = "1",
+		description = "Large lineages are formatted in parallel, the file content stays the same.")
+	int noOfThreads = 1;
+
 	@Override
 	void provideDefaults() {
 		xColumnWidth = 80;
@@ -53,6 +59,8 @@ public class yEdGraphMLWriterDlg extends AbstractGraphExportableDlg implements C
 	// ------ after all options are set, the workhorse is to be created here ------
 	@Override
 	public void run() {
-		worker = new yEdGraphMLWriter(graphMLfile.getPath(),logService);
+		worker = noOfThreads > 1
+				? new ParallelYEdGraphMLWriter(graphMLfile.getPath(),logService,noOfThreads)
+				: new yEdGraphMLWriter(graphMLfile.getPath(),logService);
 	}
 }
\ No newline at end of file
@@ -30,14 +30,51 @@ package cz.it4i.ulman.transfers.graphexport;
 import org.scijava.log.LogService;
 import org.scijava.log.StderrLogService;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
+/**
+ * Writes the graph into a GraphML file with yEd's graphics extensions.
+ *
+ * The output is streamed: the XML is encoded (see GraphMLEncoder) directly into
+ * a reused byte buffer, which is written out into a FileChannel whenever it gets
+ * full. If the file name ends with ".graphmlz", the output is gzipped.
+ *
+ * The first IO error is logged and stops any further writing.
+ */
 public class yEdGraphMLWriter extends AbstractGraphExporter implements GraphExportable
 {
 	// -----------------------------------------------------------------------------
-	private BufferedWriter file;
+	private FileChannel fileChannel = null;
+	/** non-null only when compressing */
+	private OutputStream gzipStream = null;
+
+	/** encodes into a buffer that is flushed into the file when full */
+	final GraphMLEncoder out = new GraphMLEncoder(1 << 16) {
+		@Override
+		void makeSpace(final int bytes) throws IOException
+		{
+			flush();
+			//enlarge only for the (rare) very long inputs
+			if (buffer.remaining() < bytes) super.makeSpace(bytes);
+		}
+	};
+
+	private final String fileName;
+	boolean failed = false;
+	private long writtenBytes = 0;
+
+	/** the size of the (uncompressed) output written so far */
+	public long getWrittenBytes() {
+		return writtenBytes + out.buffer.position();
+	}
 
 	final LogService logger;
 
@@ -49,17 +86,25 @@ public class yEdGraphMLWriter extends AbstractGraphExporter implements GraphExpo
 	public yEdGraphMLWriter(final String outputGraphMLFile, final LogService logService)
 	{
 		logger = logService;
+		fileName = outputGraphMLFile;
 		try {
-			file = new BufferedWriter( new FileWriter( outputGraphMLFile  ) );
+			fileChannel = FileChannel.open(Paths.get(outputGraphMLFile), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			if (outputGraphMLFile.endsWith(".graphmlz")) {
+				//NB: the fastest compression, the XML compresses well anyway
+				gzipStream = new GZIPOutputStream(Channels.newOutputStream(fileChannel), 1 << 16) {
+					{ def.setLevel(Deflater.BEST_SPEED); }
+				};
+			}
 
 			//write header
-			file.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n");
-			file.write("<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\" xmlns:java=\"http://www.yworks.com/xml/yfiles-common/1.0/java\" xmlns:sys=\"http://www.yworks.com/xml/yfiles-common/markup/primitives/2.0\" xmlns:x=\"http://www.yworks.com/xml/yfiles-common/markup/2.0\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xmlns:y=\"http://www.yworks.com/xml/graphml\" xmlns:yed=\"http://www.yworks.com/xml/yed/3\" xsi:schemaLocation=\"http://graphml.graphdrawing.org/xmlns http://www.yworks.com/xml/schema/graphml/1.1/ygraphml.xsd\">\n");
-			file.write("  <key for=\"node\" id=\"d6\" yfiles.type=\"nodegraphics\"/>\n");
-			file.write("  <key for=\"edge\" id=\"d10\" yfiles.type=\"edgegraphics\"/>\n");
-			file.write("  <graph edgedefault=\"directed\" id=\"G\">\n");
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n");
+			out.write("<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\" xmlns:java=\"http://www.yworks.com/xml/yfiles-common/1.0/java\" xmlns:sys=\"http://www.yworks.com/xml/yfiles-common/markup/primitives/2.0\" xmlns:x=\"http://www.yworks.com/xml/yfiles-common/markup/2.0\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xmlns:y=\"http://www.yworks.com/xml/graphml\" xmlns:yed=\"http://www.yworks.com/xml/yed/3\" xsi:schemaLocation=\"http://graphml.graphdrawing.org/xmlns http://www.yworks.com/xml/schema/graphml/1.1/ygraphml.xsd\">\n");
+			out.write("  <key for=\"node\" id=\"d6\" yfiles.type=\"nodegraphics\"/>\n");
+			out.write("  <key for=\"edge\" id=\"d10\" yfiles.type=\"edgegraphics\"/>\n");
+			out.write("  <graph edgedefault=\"directed\" id=\"G\">\n");
 		} catch (IOException e) {
-			e.printStackTrace();
+			reportFailure(e);
 		}
 	}
 
@@ -68,15 +113,19 @@ public class yEdGraphMLWriter extends AbstractGraphExporter implements GraphExpo
 	@Override
 	public void close()
 	{
+		if (closed) return;
+		closed = true;
 		try {
-			//write footer
-			file.write("  </graph>\n");
-			file.write("</graphml>\n");
-			file.close();
+			if (!failed) {
+				//write footer
+				out.write("  </graph>\n");
+				out.write("</graphml>\n");
+				flush();
+			}
+			if (gzipStream != null) gzipStream.close(); //NB: closes also the channel
+			else if (fileChannel != null) fileChannel.close();
 		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			closed = true;
+			reportFailure(e);
 		}
 	}
 
@@ -84,18 +133,56 @@ public class yEdGraphMLWriter extends AbstractGraphExporter implements GraphExpo
 	{
 		if (!closed) close();
 	}
+
+	void reportFailure(final IOException e)
+	{
+		if (!failed) logger.error("Writing into "+fileName+" failed, nothing more will be written: "+e.getMessage());
+		failed = true;
+	}
 	// -----------------------------------------------------------------------------
 
-	/** assuming the input color "value" has meaning
-	    when read in hexadecimal 0xRRGGBB format */
-	String colorToString(final int colorRGB)
+	/** sends the buffer's content into the file (via the compression if enabled) */
+	void flush() throws IOException
+	{
+		out.buffer.flip();
+		writeNext(out.buffer);
+		out.buffer.clear();
+	}
+
+	/** appends the chunk's content (between its position and limit) to the file */
+	void writeNext(final ByteBuffer chunk) throws IOException
 	{
-		return String.format( "#%06X", colorRGB );
+		final int size = chunk.remaining();
+		if (gzipStream != null) {
+			gzipStream.write(chunk.array(), chunk.arrayOffset() + chunk.position(), size);
+			chunk.position(chunk.limit());
+		} else {
+			writeAt(chunk, writtenBytes);
+		}
+		writtenBytes += size;
 	}
 
-	String colorToString(final int r, final int g, final int b)
+	boolean isCompressed()
 	{
-		return String.format( "#%02X%02X%02X", r,g,b );
+		return gzipStream != null;
+	}
+
+	/** flushes the buffer, and reserves the given number of bytes right after
+	    the written content, the reserved space must be filled with writeAt();
+	    not available when compressing */
+	long reserve(final long bytes) throws IOException
+	{
+		if (out.buffer.position() > 0) flush();
+		final long position = writtenBytes;
+		writtenBytes += bytes;
+		return position;
+	}
+
+	/** writes the chunk's content (between its position and limit) at the given position
+	    in the (uncompressed) file, non-overlapping chunks can be written concurrently */
+	void writeAt(final ByteBuffer chunk, long position) throws IOException
+	{
+		while (chunk.hasRemaining()) position += fileChannel.write(chunk, position);
 	}
 	// -----------------------------------------------------------------------------
 
@@ -127,70 +214,57 @@ public class yEdGraphMLWriter extends AbstractGraphExporter implements GraphExpo
 	             final int x, final int y,
 	             final int width, final int height)
 	{
+		if (failed) return;
 		try {
-			file.write("    <node id=\""+id+"\">\n");
-			file.write("      <data key=\"d6\">\n");
-			file.write("        <y:ShapeNode>\n");
-			file.write("          <y:Geometry height=\""+height+"\" width=\""+width+"\" x=\""+x+"\" y=\""+y+"\"/>\n");
-			file.write("          <y:Fill color=\""+colorToString(colorRGB)+"\" transparent=\"false\"/>\n");
-			file.write("          <y:BorderStyle color=\"#000000\" raised=\"false\" type=\"line\" width=\"1.0\"/>\n");
-			file.write("          <y:NodeLabel alignment=\"center\" autoSizePolicy=\"content\" fontFamily=\"Dialog\" fontSize=\"12\" fontStyle=\"plain\" hasBackgroundColor=\"false\" hasLineColor=\"false\" horizontalTextPosition=\"center\" iconTextGap=\"4\" modelName=\"custom\" textColor=\"#000000\" verticalTextPosition=\"bottom\" visible=\"true\">"+label+"</y:NodeLabel>\n");
-			file.write("          <y:Shape type=\"ellipse\"/>\n");
-			file.write("        </y:ShapeNode>\n");
-			file.write("      </data>\n");
-			file.write("    </node>\n");
+			out.writeNode(id, label,colorRGB, x,y, width,height);
 		} catch (IOException e) {
-			e.printStackTrace();
+			reportFailure(e);
 		}
 	}
-	// -----------------------------------------------------------------------------
 
-	/** straight edge */
-	void writeEdge(final String id,
-	               final String fromId, final String toId)
+	@Override
+	public void addNode(final int id,
+	             final String label, final int colorRGB,
+	             final int x, final int y)
+	{
+		addNode(id, label,colorRGB, x,y, defaultNodeWidth,defaultNodeHeight);
+	}
+
+	@Override
+	public void addNode(final int id,
+	             final String label, final int colorRGB,
+	             final int x, final int y,
+	             final int width, final int height)
 	{
+		if (failed) return;
 		try {
-			file.write("    <edge id=\""+id+"\" source=\""+fromId+"\" target=\""+toId+"\">\n");
-			file.write("      <data key=\"d10\">\n");
-			file.write("        <y:PolyLineEdge>\n");
-			file.write("          <y:Path sx=\"0.0\" sy=\"0.0\" tx=\"0.0\" ty=\"0.0\"/>\n");
-			file.write("          <y:LineStyle color=\"#000000\" type=\"line\" width=\"1.0\"/>\n");
-			file.write("          <y:Arrows source=\"none\" target=\"none\"/>\n");
-			file.write("          <y:BendStyle smoothed=\"false\"/>\n");
-			file.write("        </y:PolyLineEdge>\n");
-			file.write("      </data>\n");
-			file.write("    </edge>\n");
+			out.writeNode(id, label,colorRGB, x,y, width,height);
 		} catch (IOException e) {
-			e.printStackTrace();
+			reportFailure(e);
 		}
 	}
+	// -----------------------------------------------------------------------------
 
-	/** edge bending around the point [bx,by] */
-	void writeEdge(final String id,
-	               final String fromId, final String toId,
-	               final int bx, final int by)
+	@Override
+	public void addStraightLine(final String fromId, final String toId)
 	{
+		if (failed) return;
 		try {
-			file.write("    <edge id=\""+id+"\" source=\""+fromId+"\" target=\""+toId+"\">\n");
-			file.write("      <data key=\"d10\">\n");
-			file.write("        <y:PolyLineEdge>\n");
-			file.write("          <y:Path sx=\"0.0\" sy=\"0.0\" tx=\"0.0\" ty=\"0.0\"><y:Point x=\""+bx+"\" y=\""+by+"\"/></y:Path>\n");
-			file.write("          <y:LineStyle color=\"#000000\" type=\"line\" width=\"1.0\"/>\n");
-			file.write("          <y:Arrows source=\"none\" target=\"none\"/>\n");
-			file.write("          <y:BendStyle smoothed=\"false\"/>\n");
-			file.write("        </y:PolyLineEdge>\n");
-			file.write("      </data>\n");
-			file.write("    </edge>\n");
+			out.writeEdge(fromId.concat(toId), fromId, toId);
 		} catch (IOException e) {
-			e.printStackTrace();
+			reportFailure(e);
 		}
 	}
-	// -----------------------------------------------------------------------------
 
 	@Override
-	public void addStraightLine(final String fromId, final String toId)
+	public void addStraightLine(final int fromId, final int toId)
 	{
-		writeEdge(fromId.concat(toId), fromId, toId);
+		if (failed) return;
+		try {
+			out.writeEdge(fromId, toId);
+		} catch (IOException e) {
+			reportFailure(e);
+		}
 	}
 
 	@Override
@@ -215,7 +289,31 @@ public class yEdGraphMLWriter extends AbstractGraphExporter implements GraphExpo
 	public void addBendedLine(final String fromId, final String toId,
 	                          final int toX, final int toY, final int bendingOffsetY)
 	{
-		writeEdge(fromId.concat(toId), fromId, toId, toX+defaultNodeWidth/2,toY+bendingOffsetY);
+		if (failed) return;
+		try {
+			out.writeEdge(fromId.concat(toId), fromId, toId, toX+defaultNodeWidth/2,toY+bendingOffsetY);
+		} catch (IOException e) {
+			reportFailure(e);
+		}
+	}
+
+	@Override
+	public void addBendedLine(final int fromId, final int toId,
+	                          final int toX, final int toY)
+	{
+		addBendedLine(fromId,toId, toX,toY, defaultBendingPointAbsoluteOffsetY);
+	}
+
+	@Override
+	public void addBendedLine(final int fromId, final int toId,
+	                          final int toX, final int toY, final int bendingOffsetY)
+	{
+		if (failed) return;
+		try {
+			out.writeEdge(fromId, toId, toX+defaultNodeWidth/2,toY+bendingOffsetY);
+		} catch (IOException e) {
+			reportFailure(e);
+		}
 	}
 
 	@Override
@@ -229,6 +327,23 @@ public class yEdGraphMLWriter extends AbstractGraphExporter implements GraphExpo
 	}
 	// -----------------------------------------------------------------------------
 
+	/** writes all nodes and then all edges in one go */
+	@Override
+	public void addNodesAndLines(final int count,
+	                             final int[] ids, final String[] labels, final int[] colours,
+	                             final int[] xs, final int[] ys,
+	                             final int[] parentIds, final int[] bendingOffsetsY)
+	{
+		if (failed) return;
+		try {
+			out.writeNodes(0,count, ids,labels,colours, xs,ys, defaultNodeWidth,defaultNodeHeight);
+			out.writeEdges(0,count, ids, xs,ys, parentIds,bendingOffsetsY, defaultNodeWidth);
+		} catch (IOException e) {
+			reportFailure(e);
+		}
+	}
+	// -----------------------------------------------------------------------------
+
 	public void runExample()
 	{
 		System.out.println("GraphML started");
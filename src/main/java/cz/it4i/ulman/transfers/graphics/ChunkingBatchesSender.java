@@ -0,0 +1,171 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2023, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package cz.it4i.ulman.transfers.graphics;
+
+import cz.it4i.ulman.transfers.graphics.protocol.BucketsWithGraphics;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Sits in front of the addGraphics() or replaceGraphics() stream and splits
+ * every batch whose serialized size exceeds the given budget into several
+ * consecutive messages, each below the budget (unless a single graphics
+ * element is already larger), all with the same collectionName, dataName and
+ * dataID. The second and every following message of one such split batch
+ * is flagged with 'continuesPreviousBatch' so that the receiver doesn't
+ * replace what it received in the first message.
+ *
+ * Batches that fit the budget are passed unchanged.
+ */
+public class ChunkingBatchesSender implements StreamObserver<BucketsWithGraphics.BatchOfGraphics> {
+	public ChunkingBatchesSender(final StreamObserver<BucketsWithGraphics.BatchOfGraphics> underlyingStream,
+	                             final int maxMessageSizeInBytes) {
+		this.stream = underlyingStream;
+		this.maxBytes = maxMessageSizeInBytes;
+	}
+
+	final StreamObserver<BucketsWithGraphics.BatchOfGraphics> stream;
+	final int maxBytes;
+
+	/** an upper estimate of the size of one sphere in the PackedSpheres (all six columns) */
+	public static final int PACKED_SPHERE_BYTES = 4*4 + 2*5;
+	/** an upper estimate of the overhead of one repeated field element (tag + length) */
+	static final int ELEMENT_OVERHEAD_BYTES = 1 + 5;
+
+	@Override
+	public void onNext(final BucketsWithGraphics.BatchOfGraphics batch) {
+		if (batch.getSerializedSize() <= maxBytes) {
+			stream.onNext(batch);
+			return;
+		}
+
+		final BucketsWithGraphics.BatchOfGraphics header = batch.toBuilder()
+				.clearSpheres()
+				.clearLines()
+				.clearVectors()
+				.clearPackedSpheres()
+				.build();
+		final int headerSize = header.getSerializedSize() + 2; //+2 for the flag
+		final BucketsWithGraphics.BatchOfGraphics.Builder chunk = header.toBuilder();
+		int chunkSize = headerSize;
+		boolean chunkIsEmpty = true;
+
+		for (BucketsWithGraphics.SphereParameters s : batch.getSpheresList()) {
+			final int size = s.getSerializedSize() + ELEMENT_OVERHEAD_BYTES;
+			if (!chunkIsEmpty && chunkSize + size > maxBytes) {
+				sendChunk(chunk);
+				chunkSize = headerSize;
+			}
+			chunk.addSpheres(s);
+			chunkSize += size;
+			chunkIsEmpty = false;
+		}
+		for (BucketsWithGraphics.LineParameters l : batch.getLinesList()) {
+			final int size = l.getSerializedSize() + ELEMENT_OVERHEAD_BYTES;
+			if (!chunkIsEmpty && chunkSize + size > maxBytes) {
+				sendChunk(chunk);
+				chunkSize = headerSize;
+			}
+			chunk.addLines(l);
+			chunkSize += size;
+			chunkIsEmpty = false;
+		}
+		for (BucketsWithGraphics.VectorParameters v : batch.getVectorsList()) {
+			final int size = v.getSerializedSize() + ELEMENT_OVERHEAD_BYTES;
+			if (!chunkIsEmpty && chunkSize + size > maxBytes) {
+				sendChunk(chunk);
+				chunkSize = headerSize;
+			}
+			chunk.addVectors(v);
+			chunkSize += size;
+			chunkIsEmpty = false;
+		}
+
+		if (batch.hasPackedSpheres()) {
+			final BucketsWithGraphics.PackedSpheres p = batch.getPackedSpheres();
+			final int count = p.getXCount();
+			int from = 0;
+			while (from < count) {
+				int room = (maxBytes - chunkSize - 4*ELEMENT_OVERHEAD_BYTES) / PACKED_SPHERE_BYTES;
+				if (room <= 0 && !chunkIsEmpty) {
+					sendChunk(chunk);
+					chunkSize = headerSize;
+					room = (maxBytes - chunkSize - 4*ELEMENT_OVERHEAD_BYTES) / PACKED_SPHERE_BYTES;
+				}
+				final int till = Math.min(count, from + Math.max(room, 1));
+				chunk.setPackedSpheres( subRange(p, from, till) );
+				chunkSize += (till-from) * PACKED_SPHERE_BYTES;
+				chunkIsEmpty = false;
+				from = till;
+				if (from < count) {
+					sendChunk(chunk);
+					chunkSize = headerSize;
+				}
+			}
+		}
+
+		if (!chunkIsEmpty) sendChunk(chunk);
+	}
+
+	private void sendChunk(final BucketsWithGraphics.BatchOfGraphics.Builder chunk) {
+		stream.onNext( chunk.build() );
+		chunk.clearSpheres()
+				.clearLines()
+				.clearVectors()
+				.clearPackedSpheres()
+				.setContinuesPreviousBatch(true);
+	}
+
+	/** the time and color columns are copied whole if they hold only one value */
+	static BucketsWithGraphics.PackedSpheres subRange(final BucketsWithGraphics.PackedSpheres p,
+	                                                  final int from, final int till) {
+		final BucketsWithGraphics.PackedSpheres.Builder b = BucketsWithGraphics.PackedSpheres.newBuilder();
+		for (int i = from; i < till; ++i) {
+			b.addX( p.getX(i) );
+			b.addY( p.getY(i) );
+			b.addZ( p.getZ(i) );
+			b.addRadius( p.getRadius(i) );
+		}
+		if (p.getTimeCount() > 1) {
+			for (int i = from; i < till; ++i) b.addTime( p.getTime(i) );
+		} else if (p.getTimeCount() == 1) b.addTime( p.getTime(0) );
+		if (p.getColorXRGBCount() > 1) {
+			for (int i = from; i < till; ++i) b.addColorXRGB( p.getColorXRGB(i) );
+		} else if (p.getColorXRGBCount() == 1) b.addColorXRGB( p.getColorXRGB(0) );
+		return b.build();
+	}
+
+	@Override
+	public void onError(final Throwable throwable) {
+		stream.onError(throwable);
+	}
+
+	@Override
+	public void onCompleted() {
+		stream.onCompleted();
+	}
+}
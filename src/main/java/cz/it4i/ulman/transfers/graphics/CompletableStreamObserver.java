@@ -0,0 +1,99 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2023, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package cz.it4i.ulman.transfers.graphics;
+
+import cz.it4i.ulman.transfers.graphics.protocol.BucketsWithGraphics;
+import io.grpc.stub.StreamObserver;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Observes the server's response to a (streaming) call and turns it into a future
+ * that completes once the server has acknowledged the whole stream, or that
+ * completes exceptionally (with the call's error) if the call has failed.
+ *
+ * It also measures the time from its creation till the acknowledgement, and
+ * (if used with the FlowControlledSender) how many messages and bytes were sent.
+ */
+public class CompletableStreamObserver implements StreamObserver<BucketsWithGraphics.Empty> {
+	private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+	private final long startTime = System.nanoTime();
+	private volatile long endTime = 0;
+	private final AtomicLong sentMessages = new AtomicLong(0);
+	private final AtomicLong sentBytes = new AtomicLong(0);
+
+	/** completes when the server has processed (and acknowledged) the call */
+	public CompletableFuture<Void> getCompletion() {
+		return completion;
+	}
+
+	public void countSentMessage(final long bytes) {
+		sentMessages.incrementAndGet();
+		sentBytes.addAndGet(bytes);
+	}
+
+	public long getSentMessages() {
+		return sentMessages.get();
+	}
+
+	public long getSentBytes() {
+		return sentBytes.get();
+	}
+
+	/** time since the creation of this observer till the server's response,
+	 *  or till now if the response has not arrived yet */
+	public long getDurationInMillis() {
+		final long end = endTime != 0 ? endTime : System.nanoTime();
+		return (end - startTime) / 1_000_000;
+	}
+
+	/** e.g., "12 messages (3456789 bytes) acknowledged after 789 ms" */
+	public String reportStats() {
+		return getSentMessages()+" messages ("+getSentBytes()+" bytes) "
+				+ (completion.isCompletedExceptionally() ? "failed after " :
+				  (completion.isDone() ? "acknowledged after " : "pending for "))
+				+ getDurationInMillis()+" ms";
+	}
+
+	@Override
+	public void onNext(BucketsWithGraphics.Empty empty) { /* EMPTY */ }
+
+	@Override
+	public void onError(Throwable throwable) {
+		endTime = System.nanoTime();
+		completion.completeExceptionally(throwable);
+	}
+
+	@Override
+	public void onCompleted() {
+		endTime = System.nanoTime();
+		completion.complete(null);
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2023, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package cz.it4i.ulman.transfers.graphics;
+
+import com.google.protobuf.MessageLite;
+import cz.it4i.ulman.transfers.graphics.protocol.BucketsWithGraphics;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Client-streaming sender that respects the gRPC flow control: the messages are
+ * handed over to the call only when it reports it is ready to take more of them,
+ * which is not the case as long as the transport keeps buffering the already
+ * submitted (serialized) data, which happens when the receiver is slower than us.
+ * Until then, the messages are waiting in this sender, and their total (serialized)
+ * size is bounded with the 'in-flight window' (see setMaxBytesInFlight()): the
+ * sendAsync() returns immediately, while the send() and onNext() block the calling
+ * thread for as long as the message would not fit into the window. The memory held
+ * by one stream is thus bounded by the gRPC's own buffering threshold plus the window
+ * (plus the size of one message, which can be limited with the ChunkingBatchesSender).
+ *
+ * The sending is aborted (with a StatusRuntimeException) once the call has failed,
+ * or once the calling thread has been interrupted while waiting in the onNext().
+ * Don't use the blocking methods from the gRPC's own threads (e.g., from within
+ * other observers), as these are the ones to announce that the call became ready again.
+ *
+ * If the responses are observed with the CompletableStreamObserver, the sent
+ * messages and their sizes are reported to it.
+ *
+ * Usage: {@code FlowControlledSender.start(stub::addGraphics, responseObserver)}
+ */
+public class FlowControlledSender<T> implements StreamObserver<T> {
+	/** starts the given client-streaming call, the responses are passed to the given observer */
+	public static <T> FlowControlledSender<T> start(
+			final Function<StreamObserver<BucketsWithGraphics.Empty>, StreamObserver<T>> call,
+			final StreamObserver<BucketsWithGraphics.Empty> responseObserver) {
+		final FlowControlledSender<T> sender = new FlowControlledSender<>(responseObserver);
+		call.apply(sender.new ResponsesObserver());
+		return sender;
+	}
+
+	private FlowControlledSender(final StreamObserver<BucketsWithGraphics.Empty> responseObserver) {
+		this.responses = responseObserver;
+	}
+
+	private final StreamObserver<BucketsWithGraphics.Empty> responses;
+	private ClientCallStreamObserver<T> requests = null;
+
+	/** guards everything below, and the 'requests' (which is not thread-safe) */
+	private final Object readiness = new Object();
+	private volatile Throwable failure = null;
+	private volatile boolean isFinished = false;
+
+	private final ArrayDeque<WaitingMessage<T>> waitingMessages = new ArrayDeque<>();
+	private long waitingBytes = 0;
+	private boolean isCompletionRequested = false;
+
+	private static class WaitingMessage<T> {
+		final T message;
+		final int size;
+		final CompletableFuture<Void> handedOver = new CompletableFuture<>();
+		WaitingMessage(final T message, final int size) {
+			this.message = message;
+			this.size = size;
+		}
+	}
+
+	/** 16 MB of not-yet-handed-over messages */
+	public static final long DEFAULT_MAX_BYTES_IN_FLIGHT = 16L << 20;
+	private volatile long maxBytesInFlight = DEFAULT_MAX_BYTES_IN_FLIGHT;
+
+	/** the total (serialized) size of the messages that are waiting in this sender
+	 *  because the call is not ready to take them; a single larger message is still
+	 *  accepted, but only once no other message is waiting */
+	public FlowControlledSender<T> setMaxBytesInFlight(final long bytes) {
+		maxBytesInFlight = bytes;
+		return this;
+	}
+
+	/** how long to wait (in milliseconds) before checking the readiness
+	 *  again even if not notified, just a safety net */
+	static final long RECHECK_PERIOD = 1000;
+
+	class ResponsesObserver implements ClientResponseObserver<T, BucketsWithGraphics.Empty> {
+		@Override
+		public void beforeStart(final ClientCallStreamObserver<T> requestStream) {
+			requests = requestStream;
+			requestStream.setOnReadyHandler(FlowControlledSender.this::handOverWaitingMessages);
+		}
+
+		@Override
+		public void onNext(final BucketsWithGraphics.Empty empty) {
+			responses.onNext(empty);
+		}
+
+		@Override
+		public void onError(final Throwable throwable) {
+			failure = throwable;
+			handOverWaitingMessages();
+			responses.onError(throwable);
+		}
+
+		@Override
+		public void onCompleted() {
+			isFinished = true;
+			handOverWaitingMessages();
+			responses.onCompleted();
+		}
+	}
+
+	/** passes the waiting messages to the call while it is ready (or drops them
+	 *  all if the call is over), and wakes up the threads waiting in the send() */
+	private void handOverWaitingMessages() {
+		synchronized (readiness) {
+			if (failure != null || isFinished) {
+				final StatusRuntimeException e = callIsOverException();
+				waitingMessages.forEach(m -> m.handedOver.completeExceptionally(e));
+				waitingMessages.clear();
+				waitingBytes = 0;
+			}
+			while (!waitingMessages.isEmpty() && requests.isReady()) {
+				final WaitingMessage<T> m = waitingMessages.poll();
+				waitingBytes -= m.size;
+				requests.onNext(m.message);
+				countSentMessage(m.size);
+				m.handedOver.complete(null);
+			}
+			if (waitingMessages.isEmpty() && isCompletionRequested && failure == null && !isFinished) {
+				isCompletionRequested = false;
+				requests.onCompleted();
+			}
+			readiness.notifyAll();
+		}
+	}
+
+	private StatusRuntimeException callIsOverException() {
+		return failure != null ? Status.fromThrowable(failure).asRuntimeException()
+				: Status.CANCELLED.withDescription("the call has been finished already").asRuntimeException();
+	}
+
+	/** queues the message to be sent as soon as the call is ready, and returns immediately
+	 *  (the in-flight window is not respected here); the returned future completes when
+	 *  the message is handed over to the call, or exceptionally if the call has failed */
+	public CompletableFuture<Void> sendAsync(final T message) {
+		final WaitingMessage<T> m = new WaitingMessage<>(message, sizeOf(message));
+		synchronized (readiness) {
+			waitingMessages.add(m);
+			waitingBytes += m.size;
+			handOverWaitingMessages();
+		}
+		return m.handedOver;
+	}
+
+	/** blocks until the message fits into the in-flight window (or the call has failed),
+	 *  then queues it to be sent as soon as the call is ready */
+	public void send(final T message)
+	throws InterruptedException {
+		final int size = sizeOf(message);
+		synchronized (readiness) {
+			handOverWaitingMessages();
+			while (!waitingMessages.isEmpty() && waitingBytes + size > maxBytesInFlight
+					&& failure == null && !isFinished) {
+				readiness.wait(RECHECK_PERIOD);
+				handOverWaitingMessages();
+			}
+			if (failure != null) throw callIsOverException();
+			sendAsync(message);
+		}
+	}
+
+	private int sizeOf(final T message) {
+		return message instanceof MessageLite ? ((MessageLite)message).getSerializedSize() : 0;
+	}
+
+	private void countSentMessage(final int size) {
+		if (responses instanceof CompletableStreamObserver)
+			((CompletableStreamObserver)responses).countSentMessage(size);
+	}
+
+	/** the same as send() except that being interrupted while waiting is re-flagged
+	 *  on the thread and the sending is aborted with a StatusRuntimeException */
+	@Override
+	public void onNext(final T message) {
+		try {
+			send(message);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw Status.CANCELLED
+					.withDescription("interrupted while waiting to send")
+					.withCause(e)
+					.asRuntimeException();
+		}
+	}
+
+	/** the waiting messages are dropped and the call is cancelled */
+	@Override
+	public void onError(final Throwable throwable) {
+		synchronized (readiness) {
+			final StatusRuntimeException e = Status.CANCELLED
+					.withDescription("the sending has been cancelled")
+					.withCause(throwable)
+					.asRuntimeException();
+			waitingMessages.forEach(m -> m.handedOver.completeExceptionally(e));
+			waitingMessages.clear();
+			waitingBytes = 0;
+			requests.onError(throwable);
+		}
+	}
+
+	/** the call is completed once all waiting messages are handed over to it */
+	@Override
+	public void onCompleted() {
+		synchronized (readiness) {
+			isCompletionRequested = true;
+			handOverWaitingMessages();
+		}
+	}
+}
@@ -29,40 +29,62 @@ package org.mastodon.mamut;
 
 import bdv.viewer.TransformListener;
 import cz.it4i.ulman.transfers.BlenderSendingUtils;
-import cz.it4i.ulman.transfers.graphics.EmptyIgnoringStreamObservers;
+import cz.it4i.ulman.transfers.PackedSpheresBuilder;
+import cz.it4i.ulman.transfers.SpheresDeltaTracker;
+import cz.it4i.ulman.transfers.graphics.CompletableStreamObserver;
 import cz.it4i.ulman.transfers.graphics.protocol.BucketsWithGraphics;
 import io.grpc.stub.StreamObserver;
 import net.imglib2.RealPoint;
+import net.imglib2.algorithm.kdtree.ConvexPolytope;
+import net.imglib2.algorithm.kdtree.HyperPlane;
 import net.imglib2.realtransform.AffineTransform3D;
 import org.mastodon.graph.GraphChangeListener;
+import org.mastodon.kdtree.ClipConvexPolytope;
 import org.mastodon.mamut.model.Spot;
 import org.mastodon.mamut.model.Link;
 import org.mastodon.mamut.plugin.MamutPluginAppModel;
 import org.mastodon.spatial.SpatialIndex;
-import org.mastodon.model.tag.TagSetStructure;
 import org.mastodon.spatial.VertexPositionListener;
 import org.mastodon.ui.coloring.GraphColorGenerator;
 import org.mastodon.ui.coloring.DefaultGraphColorGenerator;
-import org.mastodon.ui.coloring.TagSetGraphColorGenerator;
+import org.mastodon.ui.coloring.CachedTagSetColorGenerator;
+import org.scijava.log.LogService;
+import org.scijava.log.StderrLogService;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BdvToBlenderView {
 	final MamutPluginAppModel appModel;
 	MamutViewBdv viewBdv = null;
 	BlenderSendingUtils.BlenderConnectionHandle conn = null;
 	BucketsWithGraphics.BatchOfGraphics.Builder spotsMsgBuilder = null;
+	BucketsWithGraphics.BatchOfGraphicsUpdate.Builder spotsUpdateBuilder = null;
+	BucketsWithGraphics.CollectionTransform.Builder transformMsgBuilder = null;
+	CachedTagSetColorGenerator colorizer = null;
 
 	public BdvToBlenderView(final MamutPluginAppModel pluginAppModel)
 	{
 		appModel = pluginAppModel;
 	}
 
+	private LogService logService = new StderrLogService();
+	public BdvToBlenderView setLogService(final LogService logService) {
+		this.logService = logService;
+		return this;
+	}
+
 	public void openUseAutoCleanBdvToBlenderView(final String urlToBlender,
 	                                             final String thisMastodonName,
 	                                             final String collectionName)
 	{
 		//avoid opening another view from this instance
 		if (viewBdv != null) {
-			System.out.println("It looks like you still have an opened BDV connected to Blender, bailing now.");
+			logService.warn("It looks like you still have an opened BDV connected to Blender, bailing now.");
 			return;
 		}
 
@@ -74,95 +96,186 @@ public class BdvToBlenderView {
 				.setCollectionName( collectionName )
 				.setDataID(555);
 
+		spotsUpdateBuilder = BucketsWithGraphics.BatchOfGraphicsUpdate.newBuilder();
+		spotsUpdateBuilder
+				.setClientID( conn.clientIdObj )
+				.setCollectionName( collectionName )
+				.setDataID(555);
+		deltaTracker.reset();
+
+		transformMsgBuilder = BucketsWithGraphics.CollectionTransform.newBuilder();
+		transformMsgBuilder
+				.setClientID( conn.clientIdObj )
+				.setCollectionName( collectionName )
+				.setDataID(555);
+		spotsGeometryChanged = true;
+		colorizer = new CachedTagSetColorGenerator(appModel.getAppModel().getModel(),
+				new DefaultGraphColorGenerator<>());
+
 		//create a BDV window
 		viewBdv = appModel.getWindowManager().createBigDataViewer();
 		spotsMsgBuilder.setDataName( viewBdv.getFrame().getTitle() );
+		spotsUpdateBuilder.setDataName( viewBdv.getFrame().getTitle() );
+		transformMsgBuilder.setDataName( viewBdv.getFrame().getTitle() );
 		//
-		//create a listener for it (which will _immediately_ collect updates from BDV)
-		final BdvViewUpdateListener bdvUpdateListener = new BdvViewUpdateListener(viewBdv);
-		//
-		//create a thread that would be watching over the listener and would take only
+		//create a sender that would be woken up by the listener and would take only
 		//the most recent data if no updates came from BDV for a little while
 		//(this is _delayed_ handling of the data, skipping over any intermediate changes)
-		final BdvViewUpdateBlenderSenderThread blenderSenderThread
-				= new BdvViewUpdateBlenderSenderThread(bdvUpdateListener, 60);
+		final BdvViewUpdateBlenderSender blenderSender
+				= new BdvViewUpdateBlenderSender(updatesCoalescingWindow, updatesMaxLatency);
+		//
+		//create a listener for it (which will _immediately_ collect updates from BDV)
+		final BdvViewUpdateListener bdvUpdateListener = new BdvViewUpdateListener(viewBdv, blenderSender);
 
-		//register the BDV listener and start the thread
+		//register the BDV listener
 		viewBdv.getViewerPanelMamut().renderTransformListeners().add(bdvUpdateListener);
+		colorizer.setColorsChangedListener(bdvUpdateListener::spotsColorsChanged);
 		appModel.getAppModel().getModel().getGraph().addVertexPositionListener(bdvUpdateListener);
 		appModel.getAppModel().getModel().getGraph().addGraphChangeListener(bdvUpdateListener);
-		blenderSenderThread.start();
 
 		viewBdv.onClose(() -> {
-			System.out.println("Cleaning up while BDV to Blender window is closing.");
+			logService.info("Cleaning up while BDV to Blender window is closing.");
 			viewBdv.getViewerPanelMamut().renderTransformListeners().remove(bdvUpdateListener);
 			appModel.getAppModel().getModel().getGraph().removeGraphChangeListener(bdvUpdateListener);
 			appModel.getAppModel().getModel().getGraph().removeVertexPositionListener(bdvUpdateListener);
+			//NB: this runs on the EDT, so the closing of what the sending thread
+			//may be still using is left for after the thread is over
+			final CachedTagSetColorGenerator closingColorizer = colorizer;
+			final BlenderSendingUtils.BlenderConnectionHandle closingConn = conn;
+			blenderSender.stopTheSending(() -> {
+				closingColorizer.close();
+				closingConn.closeConnection();
+			});
 			viewBdv = null;
-			blenderSenderThread.stopTheWatching();
-			conn.closeConnection();
+			colorizer = null;
 			conn = null;
 		});
 	}
 
+	private long updatesCoalescingWindow = 60;
+	private long updatesMaxLatency = 500;
+
+	/** how long (in milliseconds) no change must be reported before
+	 *  the current data is sent to Blender, default is 60 ms */
+	public BdvToBlenderView setUpdatesCoalescingWindow(final long millis) {
+		updatesCoalescingWindow = millis;
+		return this;
+	}
+
+	/** how long (in milliseconds) at most a change may wait to be sent to Blender
+	 *  even if other changes keep coming (e.g., during a long panning in BDV),
+	 *  default is 500 ms */
+	public BdvToBlenderView setUpdatesMaxLatency(final long millis) {
+		updatesMaxLatency = millis;
+		return this;
+	}
+
 	class BdvViewUpdateListener implements TransformListener<AffineTransform3D>, GraphChangeListener, VertexPositionListener
 	{
 		final MamutViewBdv myBdvIamServicing;
-		BdvViewUpdateListener(final MamutViewBdv viewBdv) {
+		final BdvViewUpdateBlenderSender mySender;
+		BdvViewUpdateListener(final MamutViewBdv viewBdv, final BdvViewUpdateBlenderSender sender) {
 			myBdvIamServicing = viewBdv;
+			mySender = sender;
 		}
 
 		@Override
 		public void transformChanged(AffineTransform3D affineTransform3D) { somethingChanged(); }
 		@Override
-		public void graphChanged() { somethingChanged(); }
+		public void graphChanged() { spotsGeometryChanged = true; somethingChanged(); }
 		@Override
-		public void vertexPositionChanged(Object vertex) { somethingChanged(); }
+		public void vertexPositionChanged(Object vertex) { spotsGeometryChanged = true; somethingChanged(); }
+		public void spotsColorsChanged() { spotsGeometryChanged = true; somethingChanged(); }
 
 		void somethingChanged() {
-			timeStampOfLastRequest = System.currentTimeMillis();
-			isLastRequestDataValid = true;
+			mySender.somethingChanged();
 			//System.out.println("detected new tp and some new transform");
 		}
-
-		boolean isLastRequestDataValid = false;
-		long timeStampOfLastRequest = 0;
 	}
 
-	class BdvViewUpdateBlenderSenderThread extends Thread
+	/**
+	 * Debouncing sender: the first reported change schedules a (single) check
+	 * on its own thread, which then sends the current data once no other change
+	 * has been reported for the 'coalescing window', or once the oldest pending
+	 * change has waited for the 'max latency'. Nothing runs when nothing changes.
+	 */
+	class BdvViewUpdateBlenderSender
 	{
-		final BdvViewUpdateListener dataSource;
-		final long updateInterval;
-		boolean keepWatching = true;
-		BdvViewUpdateBlenderSenderThread(final BdvViewUpdateListener dataSupplier,
-		                                 final long updateIntervalInMilis) {
-			super("Mastodon BDV updater to Blender");
-			dataSource = dataSupplier;
-			updateInterval = updateIntervalInMilis;
+		final long coalescingWindow;
+		final long maxLatency;
+
+		final AtomicLong timeStampOfLastRequest = new AtomicLong(0);
+		final AtomicLong timeStampOfFirstPendingRequest = new AtomicLong(0);
+		final AtomicBoolean isCheckScheduled = new AtomicBoolean(false);
+
+		final ScheduledExecutorService executor;
+
+		BdvViewUpdateBlenderSender(final long coalescingWindowInMillis,
+		                           final long maxLatencyInMillis) {
+			coalescingWindow = coalescingWindowInMillis;
+			maxLatency = Math.max(maxLatencyInMillis, coalescingWindowInMillis);
+			executor = Executors.newSingleThreadScheduledExecutor(r -> {
+				final Thread t = new Thread(r, "Mastodon BDV updater to Blender");
+				t.setDaemon(true);
+				return t;
+			});
 		}
 
-		void stopTheWatching() {
-			keepWatching = false;
+		void somethingChanged() {
+			final long now = System.currentTimeMillis();
+			timeStampOfLastRequest.set(now);
+			timeStampOfFirstPendingRequest.compareAndSet(0, now);
+			if (isCheckScheduled.compareAndSet(false, true)) {
+				try {
+					executor.schedule(this::checkAndSend, coalescingWindow, TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException e) {
+					/* the sender has been stopped already, nothing to do */
+				}
+			}
 		}
 
-		@Override
-		public void run() {
-			System.out.println("Blender sender service started");
+		void checkAndSend() {
+			final long now = System.currentTimeMillis();
+			final long sendDueToSilence = timeStampOfLastRequest.get() + coalescingWindow;
+			long firstPending = timeStampOfFirstPendingRequest.get();
+			if (firstPending == 0) firstPending = now;
+			final long sendDueToLatency = firstPending + maxLatency;
+
+			final long sendAt = Math.min(sendDueToSilence, sendDueToLatency);
+			if (now < sendAt) {
+				//still within the window, come back later
+				executor.schedule(this::checkAndSend, sendAt - now, TimeUnit.MILLISECONDS);
+				return;
+			}
+
+			//any change reported from now on will schedule its own check,
+			//changes reported before the sending will be included in it
+			timeStampOfFirstPendingRequest.set(0);
+			isCheckScheduled.set(false);
+
 			try {
-				while (keepWatching)
-				{
-					if (dataSource.isLastRequestDataValid
-							&& (System.currentTimeMillis() - dataSource.timeStampOfLastRequest > updateInterval))
-					{
-						System.out.println("silence detected, going to send the current data");
-						dataSource.isLastRequestDataValid = false;
-						sendBdvSpotsToBlender();
-					} else sleep(updateInterval/2);
-				}
+				sendBdvSpotsToBlender();
+			} catch (RuntimeException e) {
+				//failures caused by the stopping itself are not worth reporting
+				if (!executor.isShutdown()) logService.warn("Failed sending to Blender: "+e.getMessage());
 			}
-			catch (InterruptedException e)
-			{ /* do nothing, silently stop */ }
-			System.out.println("Blender sender service stopped");
+		}
+
+		/** Stops the sending without waiting for it (as this is typically
+		 *  called from the EDT), the 'cleanUp' is executed on a background
+		 *  thread once the currently running sending, if any, is over. */
+		void stopTheSending(final Runnable cleanUp) {
+			executor.shutdownNow();
+			final Thread t = new Thread(() -> {
+				try {
+					executor.awaitTermination(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					/* do nothing, just clean up */
+				}
+				cleanUp.run();
+			}, "Mastodon BDV updater to Blender cleanup");
+			t.setDaemon(true);
+			t.start();
 		}
 	}
 
@@ -181,26 +294,145 @@ public class BdvToBlenderView {
 		return this;
 	}
 
+	/** if enabled, spheres are sent in the columnar BatchOfGraphics.packedSpheres,
+	 *  which requires the Blender side to understand this part of the protocol */
+	private boolean usePackedSpheres = false;
+	public BdvToBlenderView setUsePackedSpheres(final boolean usePacked) {
+		usePackedSpheres = usePacked;
+		return this;
+	}
+	final PackedSpheresBuilder packedBuilder = new PackedSpheresBuilder();
+
+	/** if enabled, only the spheres that have changed since the last sending
+	 *  are sent (and the ones that have disappeared are asked to be removed),
+	 *  which requires the Blender side to understand the updateGraphics() call */
+	private boolean useDeltaUpdates = false;
+	public BdvToBlenderView setUseDeltaUpdates(final boolean useDelta) {
+		useDeltaUpdates = useDelta;
+		return this;
+	}
+	final SpheresDeltaTracker deltaTracker = new SpheresDeltaTracker();
+
+	/** if enabled, spheres are sent in the (world) coordinates of Mastodon and only
+	 *  when they have changed (or when the timepoint has changed), while the BDV
+	 *  view changes are sent merely as a transformation of the collection, which
+	 *  requires the Blender side to understand the setTransform() call */
+	private boolean useViewTransform = false;
+	public BdvToBlenderView setUseViewTransform(final boolean useTransform) {
+		useViewTransform = useTransform;
+		return this;
+	}
+	/** set whenever spots were added, removed, moved or re-tagged in the Mastodon's graph */
+	volatile boolean spotsGeometryChanged = true;
+	/** the transform applied on the spots before they are sent out,
+	 *  it is either the lastSentTransform or the identityTransform */
+	AffineTransform3D spotsTransform = lastSentTransform;
+	final AffineTransform3D identityTransform = new AffineTransform3D();
+
+	/** if enabled, only spots inside the box that is displayed in the BDV
+	 *  (plus some margin around it) are sent to Blender */
+	private boolean useCulling = false;
+	private double cullingMargin = 20;
+	private double cullingDepth = 100;
+	public BdvToBlenderView setUseCulling(final boolean useCulling) {
+		this.useCulling = useCulling;
+		return this;
+	}
+	/** the culling box is the BDV display enlarged with 'margin' on all four sides,
+	 *  and spanning from '-depth' to '+depth' around the BDV's focal plane; both
+	 *  values are in the screen (pixel) units of the BDV */
+	public BdvToBlenderView setCullingMargins(final double margin, final double depth) {
+		cullingMargin = margin;
+		cullingDepth = depth;
+		return this;
+	}
+
+	private Iterable<Spot> getVisibleSpots(final SpatialIndex<Spot> spots)
+	{
+		final double width = viewBdv.getViewerPanelMamut().getDisplay().getWidth();
+		final double height = viewBdv.getViewerPanelMamut().getDisplay().getHeight();
+
+		//the box in the viewer coordinates, brought into the global coordinates
+		final ConvexPolytope visibleBoxInViewer = new ConvexPolytope(
+				new HyperPlane(  0,  0,  1, -cullingDepth ),
+				new HyperPlane(  0,  0, -1, -cullingDepth ),
+				new HyperPlane(  1,  0,  0, -cullingMargin ),
+				new HyperPlane( -1,  0,  0, -width -cullingMargin ),
+				new HyperPlane(  0,  1,  0, -cullingMargin ),
+				new HyperPlane(  0, -1,  0, -height -cullingMargin ) );
+		final ConvexPolytope visibleBoxInWorld
+				= ConvexPolytope.transform( visibleBoxInViewer, lastSentTransform.inverse() );
+
+		final ClipConvexPolytope<Spot> clip = spots.getClipConvexPolytope();
+		clip.clip( visibleBoxInWorld );
+		return clip.getInsideValues();
+	}
+
 	synchronized
 	void sendBdvSpotsToBlender()
 	{
+		final int previouslySentTimepoint = lastSentTimepoint;
 		viewBdv.getViewerPanelMamut().state().getViewerTransform(lastSentTransform);
 		lastSentTimepoint = viewBdv.getViewerPanelMamut().state().getCurrentTimepoint();
 		//System.out.println("new tp: "+lastSentTimepoint+", and new transform: "+lastSentTransform);
 
+		if (lastSendingFailed) {
+			//send everything again, from scratch
+			lastSendingFailed = false;
+			deltaTracker.reset();
+			spotsGeometryChanged = true;
+		}
+
+		if (useViewTransform) {
+			//the spots are sent only if they are not already displayed in Blender
+			final boolean mustSendSpots = spotsGeometryChanged
+					|| useCulling //NB: the visible spots may have changed with the view
+					|| spotsTransform != identityTransform
+					|| lastSentTimepoint != previouslySentTimepoint;
+			if (spotsTransform != identityTransform) deltaTracker.reset();
+			spotsGeometryChanged = false;
+			spotsTransform = identityTransform;
+			if (mustSendSpots) sendSpotsOfCurrentTimepoint(previouslySentTimepoint);
+			sendViewTransformToBlender(lastSentTransform);
+		} else {
+			if (spotsTransform != lastSentTransform) {
+				//don't keep displaying the already transformed spots with the old view transform
+				deltaTracker.reset();
+				spotsTransform = lastSentTransform;
+				sendViewTransformToBlender(identityTransform);
+			}
+			sendSpotsOfCurrentTimepoint(previouslySentTimepoint);
+		}
+	}
+
+	private void sendSpotsOfCurrentTimepoint(final int previouslySentTimepoint)
+	{
 		sBuilder.setTime(0);
 		spotsMsgBuilder.clearSpheres();
+		spotsMsgBuilder.clearPackedSpheres();
+		packedBuilder.clear();
 
-		final TagSetStructure.TagSet ts = viewBdv.getColoringModel().getTagSet();
-		final GraphColorGenerator<Spot, Link> colorizer
-				= ts != null ? new TagSetGraphColorGenerator<>(
-						appModel.getAppModel().getModel().getTagSetModel(), ts)
-				: new DefaultGraphColorGenerator<>();
+		colorizer.setTagSet( viewBdv.getColoringModel().getTagSet() );
 
-		final SpatialIndex<Spot> spots
+		final SpatialIndex<Spot> allSpots
 				= appModel.getAppModel().getModel().getSpatioTemporalIndex().getSpatialIndex(lastSentTimepoint);
+		final Iterable<Spot> spots = useCulling ? getVisibleSpots(allSpots) : allSpots;
+
+		if (useDeltaUpdates) {
+			//the spheres of another timepoint have nothing in common with the displayed ones
+			if (lastSentTimepoint != previouslySentTimepoint) deltaTracker.reset();
+			sendDeltaOfBdvSpotsToBlender(spots, colorizer);
+			return;
+		}
+
 		spots.forEach(s -> {
-			lastSentTransform.apply(s, spotNewPos);
+			spotsTransform.apply(s, spotNewPos);
+			if (usePackedSpheres) {
+				packedBuilder.addSphere(spotNewPos,
+						spotScalingForBlender * (float)Math.sqrt(s.getBoundingSphereRadiusSquared()),
+						0, colorizer.color(s) & 0x00FFFFFF);
+				return;
+			}
 			sBuilder.setCentre( vBuilder
 					.setX( spotNewPos.getFloatPosition(0) )
 					.setY( spotNewPos.getFloatPosition(1) )
@@ -210,10 +442,68 @@ public class BdvToBlenderView {
 			spotsMsgBuilder.addSpheres( sBuilder );
 		});
 
+		if (usePackedSpheres) packedBuilder.buildInto(spotsMsgBuilder);
+
 		final StreamObserver<BucketsWithGraphics.BatchOfGraphics> connMsg
-				= conn.commContinuous.replaceGraphics(new EmptyIgnoringStreamObservers());
+				= conn.replaceGraphics(newResponsesObserver("spots"));
 		connMsg.onNext( spotsMsgBuilder.build() );
 		connMsg.onCompleted();
-		System.out.println("sent "+spotsMsgBuilder.getSpheresCount()+" spots");
+		logService.debug("sent "+(spotsMsgBuilder.getSpheresCount()+packedBuilder.size())+" spots");
+	}
+
+	private void sendDeltaOfBdvSpotsToBlender(final Iterable<Spot> spots,
+	                                          final GraphColorGenerator<Spot, Link> colorizer)
+	{
+		deltaTracker.beginRound();
+		spots.forEach(s -> {
+			spotsTransform.apply(s, spotNewPos);
+			deltaTracker.offer(s.getInternalPoolIndex(),
+					spotNewPos.getFloatPosition(0),
+					spotNewPos.getFloatPosition(1),
+					spotNewPos.getFloatPosition(2),
+					spotScalingForBlender * (float)Math.sqrt(s.getBoundingSphereRadiusSquared()),
+					0, colorizer.color(s) & 0x00FFFFFF);
+		});
+
+		if (!deltaTracker.finishRoundInto(spotsUpdateBuilder)) {
+			logService.debug("no spots have changed, sending nothing");
+			return;
+		}
+
+		final StreamObserver<BucketsWithGraphics.BatchOfGraphicsUpdate> connMsg
+				= conn.updateGraphics(newResponsesObserver("spots update"));
+		connMsg.onNext( spotsUpdateBuilder.build() );
+		connMsg.onCompleted();
+		logService.debug("sent "+deltaTracker.getNoOfChangedInLastRound()+" changed and "
+				+deltaTracker.getNoOfRemovedInLastRound()+" removed spots"
+				+(spotsUpdateBuilder.getClearFirst() ? " (after clearing all)" : ""));
+	}
+
+	private void sendViewTransformToBlender(final AffineTransform3D t)
+	{
+		transformMsgBuilder.clearAffine();
+		for (int row = 0; row < 3; ++row)
+			for (int col = 0; col < 4; ++col)
+				transformMsgBuilder.addAffine( (float)t.get(row,col) );
+
+		conn.commContinuous.setTransform(transformMsgBuilder.build(), newResponsesObserver("view transform"));
+		logService.debug("sent the view transform");
+	}
+
+	/** set when Blender has not received something, Blender's content is then unknown */
+	volatile boolean lastSendingFailed = false;
+
+	private CompletableStreamObserver newResponsesObserver(final String whatIsSent)
+	{
+		final CompletableStreamObserver responses = new CompletableStreamObserver();
+		responses.getCompletion().whenComplete( (ignored, e) -> {
+			if (e != null) {
+				logService.warn("Blender has not received the "+whatIsSent+": "+e.getMessage());
+				lastSendingFailed = true;
+			} else {
+				logService.debug("Blender has received the "+whatIsSent+": "+responses.reportStats());
+			}
+		});
+		return responses;
 	}
 }
@@ -0,0 +1,184 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2023, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.mastodon.ui.coloring;
+
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.model.tag.ObjTagMap;
+import org.mastodon.model.tag.TagSetModel;
+import org.mastodon.model.tag.TagSetStructure;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Remembers the colors of the spots (in an array indexed with the spots' pool indices)
+ * once they were resolved from the given tag set, so that repeated asking for the same
+ * spots (e.g., when the same timepoint is sent again and again) costs only an array read.
+ *
+ * The cache is emptied when the tag set structure is changed, or when the graph is rebuilt,
+ * and the particular spots are forgotten when they are added or removed from the graph,
+ * or when they are (re)tagged in the currently used tag set. Optionally, a listener can
+ * be notified whenever the colors could have changed in this way.
+ *
+ * Don't forget to {@link #close()} it to unregister it from the model.
+ */
+public class CachedTagSetColorGenerator
+implements GraphColorGenerator<Spot, Link>, TagSetModel.TagSetModelListener, GraphListener<Spot, Link>,
+           ObjTagMap.TagChangeListener<Spot>
+{
+	public CachedTagSetColorGenerator(final Model model,
+	                                  final GraphColorGenerator<Spot, Link> fallbackColorizer)
+	{
+		this.model = model;
+		this.fallbackColorizer = fallbackColorizer;
+		this.colorizer = fallbackColorizer;
+
+		model.getTagSetModel().listeners().add(this);
+		model.getGraph().addGraphListener(this);
+	}
+
+	final Model model;
+	final GraphColorGenerator<Spot, Link> fallbackColorizer;
+
+	private GraphColorGenerator<Spot, Link> colorizer;
+	private TagSetStructure.TagSet tagSet = null;
+	private ObjTagMap<Spot, TagSetStructure.Tag> tagMap = null;
+
+	private Runnable colorsChangedListener = null;
+
+	/** the given listener is notified whenever the colors could have changed
+	 *  because of tagging or a change of the tag sets, null is allowed to stop
+	 *  the notifications */
+	public void setColorsChangedListener(final Runnable listener)
+	{
+		colorsChangedListener = listener;
+	}
+
+	private int[] colors = new int[1024];
+	private final BitSet isColorValid = new BitSet();
+
+	/** Switches to coloring using the given tag set, or using the fallback
+	 *  colorizer if null is given; the cache is emptied if the tag set is changed. */
+	public synchronized void setTagSet(final TagSetStructure.TagSet ts)
+	{
+		if (ts == tagSet) return;
+		tagSet = ts;
+		colorizer = ts != null ? new TagSetGraphColorGenerator<>(model.getTagSetModel(), ts) : fallbackColorizer;
+		isColorValid.clear();
+
+		if (tagMap != null) tagMap.listeners().remove(this);
+		tagMap = ts != null ? model.getTagSetModel().getVertexTags().tags(ts) : null;
+		if (tagMap != null) tagMap.listeners().add(this);
+	}
+
+	public synchronized void invalidateAll()
+	{
+		isColorValid.clear();
+	}
+
+	public synchronized void invalidate(final Spot spot)
+	{
+		isColorValid.clear( spot.getInternalPoolIndex() );
+	}
+
+	public synchronized void close()
+	{
+		model.getTagSetModel().listeners().remove(this);
+		model.getGraph().removeGraphListener(this);
+		if (tagMap != null) tagMap.listeners().remove(this);
+		tagMap = null;
+	}
+
+	@Override
+	public synchronized int color(final Spot vertex)
+	{
+		final int idx = vertex.getInternalPoolIndex();
+		if (isColorValid.get(idx)) return colors[idx];
+
+		if (idx >= colors.length) colors = Arrays.copyOf(colors, Math.max(idx+1, 2*colors.length));
+		colors[idx] = colorizer.color(vertex);
+		isColorValid.set(idx);
+		return colors[idx];
+	}
+
+	@Override
+	public synchronized int color(final Link edge, final Spot source, final Spot target)
+	{
+		return colorizer.color(edge, source, target);
+	}
+
+	@Override
+	public void tagSetStructureChanged()
+	{
+		synchronized (this) {
+			//the structure is rebuilt as a whole, find the (new) instance of our tag set
+			if (tagSet != null) {
+				final int id = tagSet.id();
+				//forget the old one completely, in case it has been removed
+				if (tagMap != null) tagMap.listeners().remove(this);
+				tagMap = null;
+				tagSet = null;
+				colorizer = fallbackColorizer;
+				setTagSet( model.getTagSetModel().getTagSetStructure().getTagSets().stream()
+						.filter(ts -> ts.id() == id)
+						.findFirst()
+						.orElse(null) );
+			}
+			isColorValid.clear();
+		}
+		//e.g. the colors of the tags could have been edited
+		notifyColorsChanged();
+	}
+
+	@Override
+	public void tagChanged(final Spot vertex)
+	{
+		invalidate(vertex);
+		notifyColorsChanged();
+	}
+
+	private void notifyColorsChanged()
+	{
+		final Runnable l = colorsChangedListener;
+		if (l != null) l.run();
+	}
+
+	@Override
+	public void graphRebuilt() { invalidateAll(); }
+	@Override
+	public void vertexAdded(final Spot vertex) { invalidate(vertex); }
+	@Override
+	public void vertexRemoved(final Spot vertex) { invalidate(vertex); }
+	@Override
+	public void edgeAdded(final Link edge) { /* edges are not cached */ }
+	@Override
+	public void edgeRemoved(final Link edge) { /* edges are not cached */ }
+}
@@ -0,0 +1,84 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2023, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package cz.it4i.ulman.transfers.graphexport;
+
+import org.scijava.log.StderrLogService;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Measures how fast the yEdGraphMLWriter writes a synthetic lineage (a binary
+ * tree given with the bulk API) into a plain and into a compressed file, and
+ * how fast the ParallelYEdGraphMLWriter does the same.
+ * Usage: [number of nodes, default 2M] [output folder, default the system's temp] [threads, default all CPUs]
+ */
+public class BenchmarkGraphMLWriter {
+	public static void main(String[] args) throws IOException {
+		final int noOfNodes = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+		final File folder = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+		final int noOfThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		//synthetic lineage: node i is the daughter of node (i-1)/2
+		final int[] ids = new int[noOfNodes];
+		final String[] labels = new String[noOfNodes];
+		final int[] colours = new int[noOfNodes];
+		final int[] xs = new int[noOfNodes];
+		final int[] ys = new int[noOfNodes];
+		final int[] parentIds = new int[noOfNodes];
+		final int[] bendings = new int[noOfNodes];
+		for (int i = 0; i < noOfNodes; ++i) {
+			ids[i] = i;
+			labels[i] = "cell <"+i+"> & co.";
+			colours[i] = (i * 2654435761L) % 2 == 0 ? 0xCCCCCC : 0x00FF7F;
+			xs[i] = i * 10;
+			ys[i] = (31 - Integer.numberOfLeadingZeros(i+1)) * 100;
+			parentIds[i] = i == 0 ? -1 : (i-1)/2;
+			bendings[i] = -80;
+		}
+
+		for (int threads : new int[] { 1, noOfThreads })
+		for (String suffix : new String[] { ".graphml", ".graphmlz" }) {
+			final File file = new File(folder, "benchmark"+suffix);
+			System.out.println("threads: "+threads);
+			for (int round = 0; round < 3; ++round) {
+				final long start = System.nanoTime();
+				final yEdGraphMLWriter w = threads > 1
+						? new ParallelYEdGraphMLWriter(file.getPath(), new StderrLogService(), threads)
+						: new yEdGraphMLWriter(file.getPath());
+				w.addNodesAndLines(noOfNodes, ids, labels, colours, xs, ys, parentIds, bendings);
+				w.close();
+				final double secs = (System.nanoTime() - start) / 1e9;
+				final double mb = w.getWrittenBytes() / (double)(1 << 20);
+				System.out.printf("%s: %d nodes, %.1f MB of XML (%.1f MB on disk) in %.2f s -> %.1f MB/s, %.0f nodes/s%n",
+						file.getName(), noOfNodes, mb, file.length() / (double)(1 << 20), secs, mb/secs, noOfNodes/secs);
+			}
+			if (!file.delete()) System.out.println("Could not remove "+file);
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2023, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package cz.it4i.ulman.transfers.graphexport.leftrightness;
+
+import org.joml.Vector3d;
+import org.mastodon.collection.RefList;
+import org.mastodon.collection.ref.RefArrayList;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast the geometric sorters order daughters of divisions that
+ * happen, as in an embryo, on the surface of an ellipsoid: the daughters are
+ * mostly side-by-side within the surface, some divisions are (partly) towards
+ * or outwards the centre, and every tenth division has three daughters.
+ * The divisions are synthetic, they only stand in for recorded tracking data.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BenchmarkDescendantsSorters {
+	@Param({"poles", "slices", "triangle"})
+	public String sorterType;
+
+	@Param({"10000"})
+	public int noOfDivisions;
+
+	private AbstractDescendantsSorter sorter;
+	private final List<RefList<Spot>> divisions = new ArrayList<>();
+	private Spot dRef;
+
+	@Setup
+	public void setup() {
+		//the embryo: an ellipsoid around the origin
+		final double rx = 300, ry = 200, rz = 150;
+		final Vector3d centre = new Vector3d(0,0,0);
+		final Vector3d south = new Vector3d(-rx,0,0);
+		final Vector3d north = new Vector3d(+rx,0,0);
+
+		switch (sorterType) {
+		case "poles":
+			sorter = new PolesSorter(centre, south, north);
+			break;
+		case "slices":
+			sorter = new SlicesSorter(south, north);
+			break;
+		default:
+			sorter = new TriangleSorter(centre, north, new Vector3d(0,ry,0));
+		}
+
+		final ModelGraph graph = new ModelGraph();
+		final Spot sRef = graph.vertices().createRef();
+		final Random rnd = new Random(42);
+		final double[] pos = new double[3];
+		final Vector3d mother = new Vector3d();
+		final Vector3d dir = new Vector3d();
+		divisions.clear();
+		for (int d = 0; d < noOfDivisions; ++d) {
+			//a mother on the surface...
+			final double theta = Math.PI * rnd.nextDouble();
+			final double phi = 2*Math.PI * rnd.nextDouble();
+			mother.set(rx*Math.sin(theta)*Math.cos(phi), ry*Math.sin(theta)*Math.sin(phi), rz*Math.cos(theta));
+
+			//...and the direction of its division: random but mostly within the surface
+			final Vector3d radial = new Vector3d(mother).normalize();
+			dir.set(rnd.nextGaussian(), rnd.nextGaussian(), rnd.nextGaussian()).normalize();
+			final double radialWeight = rnd.nextDouble() < 0.2 ? 1.0 : 0.1;
+			dir.fma(radialWeight - dir.dot(radial), radial).normalize();
+
+			final int noOfDaughters = d % 10 == 0 ? 3 : 2;
+			final RefList<Spot> daughters = new RefArrayList<>(graph.vertices().getRefPool(), noOfDaughters);
+			for (int i = 0; i < noOfDaughters; ++i) {
+				final double shift = 6.0 * (i - 0.5*(noOfDaughters-1)) + rnd.nextGaussian();
+				pos[0] = mother.x + shift*dir.x;
+				pos[1] = mother.y + shift*dir.y;
+				pos[2] = mother.z + shift*dir.z;
+				daughters.add( graph.addVertex(sRef).init(1, pos, 5.0) );
+			}
+			divisions.add(daughters);
+		}
+		graph.vertices().releaseRef(sRef);
+		dRef = graph.vertices().createRef();
+	}
+
+	@Benchmark
+	public int sortAllDivisions() {
+		int firstDaughters = 0;
+		for (RefList<Spot> daughters : divisions) {
+			sorter.sort(daughters);
+			firstDaughters += daughters.get(0, dRef).getInternalPoolIndex();
+		}
+		return firstDaughters;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner( new OptionsBuilder()
+				.include(BenchmarkDescendantsSorters.class.getSimpleName())
+				.build() ).run();
+	}
+}
@@ -25,18 +25,43 @@
  * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
  * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
-package cz.it4i.ulman.transfers.graphics;
+package cz.it4i.ulman.transfers.graphexport;
 
-import cz.it4i.ulman.transfers.graphics.protocol.BucketsWithGraphics;
-import io.grpc.stub.StreamObserver;
+import org.junit.Test;
 
-public class EmptyIgnoringStreamObservers implements StreamObserver<BucketsWithGraphics.Empty> {
-	@Override
-	public void onNext(BucketsWithGraphics.Empty empty) { /* EMPTY */ }
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
-	@Override
-	public void onError(Throwable throwable) { /* EMPTY */ }
+public class testNodeCoordinatesMemory {
+	@Test
+	public void testStoringAndReading() {
+		final NodeCoordinatesMemory m = new NodeCoordinatesMemory(10);
+		m.set(0, 1.f, 2.f);
+		m.set(1000, 3.f, 4.f); //NB: beyond the initial capacity
+		m.set(-5, 5.f, 6.f);
 
-	@Override
-	public void onCompleted() { /* EMPTY */ }
+		assertEquals(1.f, m.getX(0), 0.f);
+		assertEquals(2.f, m.getY(0), 0.f);
+		assertEquals(3.f, m.getX(1000), 0.f);
+		assertEquals(4.f, m.getY(1000), 0.f);
+		assertEquals(5.f, m.getX(-5), 0.f);
+		assertEquals(6.f, m.getY(-5), 0.f);
+		assertEquals(0.f, m.getX(999999), 0.f);
+	}
+
+	@Test
+	public void testFootprintOfMillionNodes() {
+		final int noOfNodes = 1_000_000;
+		final NodeCoordinatesMemory m = new NodeCoordinatesMemory();
+		for (int i = 0; i < noOfNodes; ++i) m.set(i, i, -i);
+
+		for (int i = 0; i < noOfNodes; i += 997) {
+			assertEquals(i, m.getX(i), 0.f);
+			assertEquals(-i, m.getY(i), 0.f);
+		}
+
+		//two floats per node (8 MB), the arrays may be up to 1.5x larger than needed
+		final long footprint = m.getFootprintInBytes();
+		assertTrue(footprint < 16L << 20);
+	}
 }